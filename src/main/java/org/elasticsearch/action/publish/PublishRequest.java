@@ -21,11 +21,15 @@ package org.elasticsearch.action.publish;
 
 import com.google.common.base.Charsets;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
 import java.util.Map;
 import org.elasticsearch.ElasticSearchGenerationException;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.support.single.custom.SingleCustomOperationRequest;
 import org.elasticsearch.client.IngestRequests;
+import org.elasticsearch.client.websocket.ChunkedSource;
 import org.elasticsearch.common.Required;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
@@ -48,6 +52,10 @@ public class PublishRequest extends SingleCustomOperationRequest {
     private BytesReference source;
     private boolean sourceUnsafe;
 
+    private ChunkedSource streamSource;
+
+    private boolean jsonMessage;
+
     private XContentType contentType = IngestRequests.INDEX_CONTENT_TYPE;
     
     
@@ -99,6 +107,29 @@ public class PublishRequest extends SingleCustomOperationRequest {
         return source;
     }
 
+    /**
+     * Send a JSON message as it is, so subscribers receive it as a JSON value,
+     * and server side filters can select it by its fields. By default, the
+     * message is sent as a string, whatever its content.
+     *
+     * @param jsonMessage true to send the message as JSON
+     */
+    public PublishRequest jsonMessage(boolean jsonMessage) {
+        this.jsonMessage = jsonMessage;
+        return this;
+    }
+
+    public boolean jsonMessage() {
+        return jsonMessage;
+    }
+
+    /**
+     * The streamed message, or null if the message is held in memory.
+     */
+    public ChunkedSource streamSource() {
+        return streamSource;
+    }
+
     public Map<String, Object> sourceAsMap() {
         return XContentHelper.convertToMap(source, false).v2();
     }
@@ -139,6 +170,7 @@ public class PublishRequest extends SingleCustomOperationRequest {
     public PublishRequest source(String source) {
         this.source = new BytesArray(source.getBytes(Charsets.UTF_8));
         this.sourceUnsafe = false;
+        this.streamSource = null;
         return this;
     }
 
@@ -149,6 +181,7 @@ public class PublishRequest extends SingleCustomOperationRequest {
     public PublishRequest source(XContentBuilder sourceBuilder) {
         source = sourceBuilder.bytes();
         sourceUnsafe = false;
+        streamSource = null;
         return this;
     }
 
@@ -202,6 +235,7 @@ public class PublishRequest extends SingleCustomOperationRequest {
     public PublishRequest source(BytesReference source, boolean unsafe) {
         this.source = source;
         this.sourceUnsafe = unsafe;
+        this.streamSource = null;
         return this;
     }
 
@@ -237,6 +271,54 @@ public class PublishRequest extends SingleCustomOperationRequest {
     public PublishRequest source(byte[] source, int offset, int length, boolean unsafe) {
         this.source = new BytesArray(source, offset, length);
         this.sourceUnsafe = unsafe;
+        this.streamSource = null;
+        return this;
+    }
+
+    /**
+     * Sets the message to a JSON document read from a stream while it is sent.
+     * The stream is closed after sending. It is read on the I/O thread, so it must
+     * not wait for its data, see {@link ChunkedSource#of(InputStream)}.
+     *
+     * @param source the stream of the JSON document
+     */
+    @Required
+    public PublishRequest source(InputStream source) {
+        return source(ChunkedSource.of(source));
+    }
+
+    /**
+     * Sets the message to a JSON document in a file. The file is mapped into memory
+     * region by region while it is sent, it is never read onto the heap.
+     *
+     * @param source the path of the JSON document
+     */
+    @Required
+    public PublishRequest source(Path source) {
+        return source(ChunkedSource.of(source));
+    }
+
+    /**
+     * Sets the message to a JSON document in a mapped region of a file.
+     *
+     * @param source the mapped JSON document
+     */
+    @Required
+    public PublishRequest source(MappedByteBuffer source) {
+        return source(ChunkedSource.of(source));
+    }
+
+    /**
+     * Sets the message to a JSON document read from a chunked source while it is sent.
+     * A request with a streamed message can be sent only once.
+     *
+     * @param source the source of the JSON document
+     */
+    @Required
+    public PublishRequest source(ChunkedSource source) {
+        this.streamSource = source;
+        this.source = null;
+        this.sourceUnsafe = false;
         return this;
     }
 
@@ -245,19 +327,27 @@ public class PublishRequest extends SingleCustomOperationRequest {
         super.readFrom(in);
         topic = in.readString();
         source = in.readBytesReference();
+        jsonMessage = in.readBoolean();
         sourceUnsafe = false;
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
+        if (streamSource != null) {
+            throw new IOException("a streamed message can not be serialized");
+        }
         super.writeTo(out);
         out.writeString(topic);
         out.writeBytesReference(source);
+        out.writeBoolean(jsonMessage);
     }
 
     @Override
     public String toString() {
         String sSource = "_na_";
+        if (streamSource != null) {
+            return "publish {["+topic+"] _stream_}";
+        }
         try {
             sSource = XContentHelper.convertToJson(source, false);
         } catch (Exception e) {
@@ -0,0 +1,314 @@
+/*
+ * Licensed to Elastic Search and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Elastic Search licenses this 
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.action.subscribe;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * A filter of the messages of a subscription, evaluated by the server before a
+ * message is sent to the subscriber.
+ *
+ * A filter is a conjunction of clauses over the fields of a JSON message. A field
+ * is addressed by its path, with dots between the names of nested objects. A term
+ * clause matches a field with the given value, a range clause matches a field
+ * between two bounds, both inclusive and optional, and an exists clause matches
+ * a message that has the field. Numbers are compared by their values, everything
+ * else by its string form. A field with a list of values matches if one of the
+ * values matches. A message that is not a JSON object matches only the
+ * empty filter.
+ *
+ * In a subscribe frame, the filter is a list of clauses:
+ * <pre>
+ * "filter" : [ { "term" : { "user" : "kimchy" } },
+ *              { "range" : { "price" : { "gte" : 10, "lte" : 20 } } },
+ *              { "exists" : { "field" : "tags" } } ]
+ * </pre>
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class SubscribeFilter implements Streamable, ToXContent {
+
+    /**
+     * The kinds of clauses.
+     */
+    public enum Op {
+        TERM, RANGE, EXISTS
+    }
+
+    private final List<Clause> clauses = Lists.newArrayList();
+
+    public SubscribeFilter() {
+    }
+
+    /**
+     * Match messages with a field of the given value.
+     */
+    public SubscribeFilter term(String field, Object value) {
+        if (value == null) {
+            throw new ElasticSearchIllegalArgumentException("no value for term clause on " + field);
+        }
+        clauses.add(new Clause(Op.TERM, field, value, null));
+        return this;
+    }
+
+    /**
+     * Match messages with a field between two inclusive bounds. A null bound is unbounded.
+     */
+    public SubscribeFilter range(String field, Object from, Object to) {
+        if (from == null && to == null) {
+            throw new ElasticSearchIllegalArgumentException("no bounds for range clause on " + field);
+        }
+        clauses.add(new Clause(Op.RANGE, field, from, to));
+        return this;
+    }
+
+    /**
+     * Match messages that have a field.
+     */
+    public SubscribeFilter exists(String field) {
+        clauses.add(new Clause(Op.EXISTS, field, null, null));
+        return this;
+    }
+
+    public List<Clause> clauses() {
+        return Collections.unmodifiableList(clauses);
+    }
+
+    /**
+     * Evaluate the filter on a message, either a map of a JSON object or any other value.
+     */
+    public boolean matches(Object message) {
+        if (clauses.isEmpty()) {
+            return true;
+        }
+        if (!(message instanceof Map)) {
+            return false;
+        }
+        for (Clause clause : clauses) {
+            if (!clause.matches(extract((Map<?, ?>) message, clause.field))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a filter from the list of clauses of a subscribe frame.
+     *
+     * @throws ElasticSearchIllegalArgumentException if a clause is malformed
+     */
+    public static SubscribeFilter fromList(List<?> list) {
+        SubscribeFilter filter = new SubscribeFilter();
+        for (Object o : list) {
+            if (!(o instanceof Map)) {
+                throw new ElasticSearchIllegalArgumentException("filter clause is not an object: " + o);
+            }
+            Map<?, ?> clause = (Map<?, ?>) o;
+            if (clause.get("term") instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) clause.get("term")).entrySet()) {
+                    filter.term(String.valueOf(entry.getKey()), entry.getValue());
+                }
+            } else if (clause.get("range") instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) clause.get("range")).entrySet()) {
+                    if (!(entry.getValue() instanceof Map)) {
+                        throw new ElasticSearchIllegalArgumentException("range clause on " + entry.getKey()
+                                + " has no object of bounds: " + entry.getValue());
+                    }
+                    Map<?, ?> bounds = (Map<?, ?>) entry.getValue();
+                    filter.range(String.valueOf(entry.getKey()), bounds.get("gte"), bounds.get("lte"));
+                }
+            } else if (clause.get("exists") instanceof Map) {
+                Object field = ((Map<?, ?>) clause.get("exists")).get("field");
+                if (!(field instanceof String)) {
+                    throw new ElasticSearchIllegalArgumentException("exists clause has no field name: " + clause);
+                }
+                filter.exists((String) field);
+            } else {
+                throw new ElasticSearchIllegalArgumentException("unknown filter clause: " + clause);
+            }
+        }
+        return filter;
+    }
+
+    public static SubscribeFilter readSubscribeFilter(StreamInput in) throws IOException {
+        SubscribeFilter filter = new SubscribeFilter();
+        filter.readFrom(in);
+        return filter;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        clauses.clear();
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            Op op = Op.values()[in.readByte()];
+            String field = in.readString();
+            Object value = in.readGenericValue();
+            Object to = in.readGenericValue();
+            clauses.add(new Clause(op, field, value, to));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(clauses.size());
+        for (Clause clause : clauses) {
+            out.writeByte((byte) clause.op.ordinal());
+            out.writeString(clause.field);
+            out.writeGenericValue(clause.value);
+            out.writeGenericValue(clause.to);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray();
+        for (Clause clause : clauses) {
+            builder.startObject();
+            switch (clause.op) {
+                case TERM:
+                    builder.startObject("term").field(clause.field, clause.value).endObject();
+                    break;
+                case RANGE:
+                    builder.startObject("range").startObject(clause.field);
+                    if (clause.value != null) {
+                        builder.field("gte", clause.value);
+                    }
+                    if (clause.to != null) {
+                        builder.field("lte", clause.to);
+                    }
+                    builder.endObject().endObject();
+                    break;
+                case EXISTS:
+                    builder.startObject("exists").field("field", clause.field).endObject();
+                    break;
+            }
+            builder.endObject();
+        }
+        return builder.endArray();
+    }
+
+    @Override
+    public String toString() {
+        return clauses.toString();
+    }
+
+    private static Object extract(Map<?, ?> map, String path) {
+        Object o = map;
+        for (String name : path.split("\\.")) {
+            if (!(o instanceof Map)) {
+                return null;
+            }
+            o = ((Map<?, ?>) o).get(name);
+        }
+        return o;
+    }
+
+    static int compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * A clause of a filter.
+     */
+    public static class Clause {
+
+        private final Op op;
+
+        private final String field;
+
+        // the term, or the lower bound of a range
+        private final Object value;
+
+        // the upper bound of a range
+        private final Object to;
+
+        Clause(Op op, String field, Object value, Object to) {
+            if (field == null) {
+                throw new ElasticSearchIllegalArgumentException("no field for " + op + " clause");
+            }
+            this.op = op;
+            this.field = field;
+            this.value = value;
+            this.to = to;
+        }
+
+        public Op op() {
+            return op;
+        }
+
+        public String field() {
+            return field;
+        }
+
+        public Object value() {
+            return value;
+        }
+
+        public Object from() {
+            return value;
+        }
+
+        public Object to() {
+            return to;
+        }
+
+        boolean matches(Object o) {
+            if (o == null) {
+                return false;
+            }
+            if (o instanceof List && op != Op.EXISTS) {
+                // a field with many values matches if one of them matches
+                for (Object element : (List<?>) o) {
+                    if (matches(element)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            switch (op) {
+                case TERM:
+                    return compare(o, value) == 0;
+                case RANGE:
+                    return (value == null || compare(o, value) >= 0) && (to == null || compare(o, to) <= 0);
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return op == Op.RANGE ? field + ":[" + value + " TO " + to + "]" :
+                    op == Op.TERM ? field + ":" + value : "_exists_:" + field;
+        }
+    }
+}
@@ -33,6 +33,8 @@ public class SubscribeRequest extends SingleCustomOperationRequest {
     private String subscriberId;
     
     private String topic;
+
+    private SubscribeFilter filter;
     
     public SubscribeRequest() {
     }
@@ -72,7 +74,7 @@ public class SubscribeRequest extends SingleCustomOperationRequest {
     }
     
     public String subscriberId() {
-        return topic;
+        return subscriberId;
     }
     
     public SubscribeRequest subscriberId(String subscriberId) {
@@ -80,11 +82,27 @@ public class SubscribeRequest extends SingleCustomOperationRequest {
         return this;
     }
 
+    public SubscribeFilter filter() {
+        return filter;
+    }
+
+    /**
+     * Only receive the messages of the topic that match the filter. The filter
+     * is evaluated by the server, so other messages are never sent.
+     */
+    public SubscribeRequest filter(SubscribeFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
         topic = in.readString();
         subscriberId = in.readString();
+        if (in.readBoolean()) {
+            filter = SubscribeFilter.readSubscribeFilter(in);
+        }
     }
 
     @Override
@@ -92,10 +110,16 @@ public class SubscribeRequest extends SingleCustomOperationRequest {
         super.writeTo(out);
         out.writeString(topic);
         out.writeString(subscriberId);
+        if (filter == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            filter.writeTo(out);
+        }
     }
 
     @Override
     public String toString() {
-        return "subscribe {["+topic+"] " +subscriberId+"}";
+        return "subscribe {["+topic+"] " +subscriberId+ (filter != null ? " " + filter : "") + "}";
     }
 }
\ No newline at end of file
@@ -19,7 +19,10 @@
 
 package org.elasticsearch.action.support;
 
+import com.google.common.base.Charsets;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.action.ActionFuture;
 import org.elasticsearch.action.ActionListener;
@@ -27,14 +30,55 @@ import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.ActionResponse;
 import static org.elasticsearch.action.support.PlainActionFuture.newFuture;
+import org.elasticsearch.client.websocket.ChunkedSource;
+import org.elasticsearch.client.websocket.WebSocketBuffers;
 import org.elasticsearch.client.websocket.WebSocketClient;
+import org.elasticsearch.client.websocket.WebSocketPriority;
+import org.elasticsearch.client.websocket.WebSocketRecycler;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 
 public abstract class WebSocketAction<Request extends ActionRequest, Response extends ActionResponse> {
 
-    protected abstract void doExecute(WebSocketClient client, Request request, ActionListener<Response> listener);
+    /**
+     * The largest buffer that is kept for reuse.
+     */
+    private final static int MAX_POOLED_BUFFER = 64 * 1024;
+
+    private final static WebSocketRecycler<BytesStreamOutput> buffers = new WebSocketRecycler<BytesStreamOutput>(256,
+            new WebSocketRecycler.Factory<BytesStreamOutput>() {
+                @Override
+                public BytesStreamOutput create() {
+                    return new BytesStreamOutput();
+                }
+
+                @Override
+                public boolean reset(BytesStreamOutput bytes) {
+                    if (bytes.size() > MAX_POOLED_BUFFER) {
+                        return false;
+                    }
+                    bytes.reset();
+                    return true;
+                }
+            });
+
+    private final static ConcurrentMap<String, ChannelBuffer> constants = new ConcurrentHashMap<String, ChannelBuffer>();
+
+    /**
+     * Send the request.
+     *
+     * @return the future of the write of the request frame, failed if the client is not connected
+     */
+    protected abstract ChannelFuture doExecute(WebSocketClient client, Request request, ActionListener<Response> listener);
 
     public ActionFuture<Response> execute(WebSocketClient client, Request request) throws ElasticSearchException {
         PlainActionFuture<Response> future = newFuture();
@@ -43,21 +87,64 @@ public abstract class WebSocketAction<Request extends ActionRequest, Response ex
         return future;
     }
 
-    public void execute(WebSocketClient client, Request request, ActionListener<Response> listener) {
+    public void execute(WebSocketClient client, Request request, final ActionListener<Response> listener) {
         ActionRequestValidationException validationException = request.validate();
         if (validationException != null) {
             listener.onFailure(validationException);
             return;
         }
         try {
-            doExecute(client, request, listener);
+            doExecute(client, request, listener).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        listener.onFailure(future.getCause());
+                    }
+                }
+            });
         } catch (Exception e) {
             listener.onFailure(e);
         }
     }
 
+    /**
+     * Send the request without a listener. The returned future completes when the
+     * request frame is written to the socket, which allows callers to bound the
+     * number of requests in flight.
+     *
+     * @return the future of the write, failed if the client is not connected
+     * @throws ActionRequestValidationException if the request is not valid
+     */
+    public ChannelFuture write(WebSocketClient client, Request request) throws ActionRequestValidationException {
+        ActionRequestValidationException validationException = request.validate();
+        if (validationException != null) {
+            throw validationException;
+        }
+        return doExecute(client, request, null);
+    }
+
+    /**
+     * The outbound lane for the frames of this action. Defaults to the bulk lane.
+     */
+    protected WebSocketPriority priority() {
+        return WebSocketPriority.BULK;
+    }
+
+    /**
+     * A JSON builder on a recycled buffer. The buffer returns to the pool when the
+     * frame built from it has been written, see {@link #release(ChannelFuture, XContentBuilder)}.
+     */
     protected XContentBuilder builder() throws IOException {
-        return jsonBuilder();
+        return new XContentBuilder(JsonXContent.jsonXContent, buffers.obtain());
+    }
+
+    /**
+     * Return the buffer of a builder to the pool after the write of the frame that refers to it.
+     */
+    protected void release(ChannelFuture future, XContentBuilder builder) {
+        if (builder != null && builder.stream() instanceof BytesStreamOutput) {
+            buffers.releaseOnComplete(future, (BytesStreamOutput) builder.stream());
+        }
     }
 
     /**
@@ -71,23 +158,107 @@ public abstract class WebSocketAction<Request extends ActionRequest, Response ex
      *        }
      *    }
      * </pre>
+     * The frame is a composite of constant envelope parts and the bytes of the builder.
      * 
      * @param client
      * @param type
      * @param builder 
      */
-    protected void responseOK(WebSocketClient client, String type, XContentBuilder builder) {
+    protected ChannelFuture responseOK(WebSocketClient client, String type, XContentBuilder builder) {
         try {
-            XContentBuilder responseBuilder = builder().startObject().field("ok", true).field("type", type);
-            if (builder != null) {
-                responseBuilder.rawField("data", builder.bytes());
-            }
-            responseBuilder.endObject();
-            client.send(new TextWebSocketFrame(responseBuilder.string()));
+            ChannelBuffer frame = builder != null ?
+                    ChannelBuffers.wrappedBuffer(
+                            constant("{\"ok\":true,\"type\":\"" + type + "\",\"data\":"),
+                            WebSocketBuffers.wrap(builder.bytes()),
+                            constant("}")) :
+                    constant("{\"ok\":true,\"type\":\"" + type + "\"}");
+            ChannelFuture future = client.send(new TextWebSocketFrame(frame), priority());
+            release(future, builder);
+            return future;
         } catch (Exception e) {
-            responseError(client, type, e);
+            return responseError(client, type, e);
         }
     }
+
+    /**
+     * An OK response with a JSON payload as the last field of the data object.
+     * The frame is a composite of the envelope and the payload, so the payload
+     * is neither copied nor parsed, and can be split into fragments as it is.
+     *
+     * @param client
+     * @param type
+     * @param header the data object without the payload
+     * @param field the field name of the payload
+     * @param payload the JSON payload
+     */
+    protected ChannelFuture responseOK(WebSocketClient client, String type, XContentBuilder header, String field, BytesReference payload) {
+        try {
+            ChannelBuffer frame = ChannelBuffers.wrappedBuffer(
+                    envelopeStart(type, header, field),
+                    WebSocketBuffers.wrap(payload),
+                    constant("}}"));
+            ChannelFuture future = client.send(new TextWebSocketFrame(frame), priority());
+            release(future, header);
+            return future;
+        } catch (Exception e) {
+            return responseError(client, type, e);
+        }
+    }
+
+    /**
+     * An OK response with a JSON payload from a chunked source as the last field
+     * of the data object. The payload is read while the frame is written.
+     *
+     * @param client
+     * @param type
+     * @param header the data object without the payload
+     * @param field the field name of the payload
+     * @param payload the source of the JSON payload
+     */
+    protected ChannelFuture responseOK(WebSocketClient client, String type, XContentBuilder header, String field, ChunkedSource payload) {
+        try {
+            ChannelFuture future = client.send(ChunkedSource.concat(
+                    ChunkedSource.of(envelopeStart(type, header, field)),
+                    payload,
+                    ChunkedSource.of(constant("}}"))), priority());
+            release(future, header);
+            return future;
+        } catch (Exception e) {
+            return responseError(client, type, e);
+        }
+    }
+
+    private ChannelBuffer envelopeStart(String type, XContentBuilder header, String field) throws IOException {
+        BytesReference head = header.bytes();
+        // strip the closing brace of the data object, the payload is appended as last field
+        head = head.slice(0, head.length() - 1);
+        String separator = head.length() > 1 ? "," : "";
+        return ChannelBuffers.wrappedBuffer(
+                constant("{\"ok\":true,\"type\":\"" + type + "\",\"data\":"),
+                WebSocketBuffers.wrap(head),
+                constant(separator + "\"" + field + "\":"));
+    }
+
+    /**
+     * A cached read-only buffer of a string. The envelope parts are built from a few
+     * constant type and field names, so there is no need to encode them for every frame.
+     */
+    private static ChannelBuffer constant(String s) {
+        ChannelBuffer buffer = constants.get(s);
+        if (buffer == null) {
+            buffer = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(s, Charsets.UTF_8));
+            constants.putIfAbsent(s, buffer);
+        }
+        // a slice, so the reader index of the cached buffer is never moved
+        return buffer.slice();
+    }
+
+    /**
+     * Check if bytes can be appended as a JSON payload without conversion.
+     */
+    protected static boolean isJson(BytesReference bytes) {
+        return bytes != null && bytes.length() > 0 && XContentFactory.xContentType(bytes) == XContentType.JSON;
+    }
     
     /**
      * The format for an error response is
@@ -103,7 +274,7 @@ public abstract class WebSocketAction<Request extends ActionRequest, Response ex
      * @param type
      * @param t 
      */
-    protected void responseError(WebSocketClient client, String type, Throwable t) {
-        client.send(new TextWebSocketFrame("{\"ok\":false,\"type\":\"" + type + "\",\"error\":\"" + t.getMessage() + "\""));        
+    protected ChannelFuture responseError(WebSocketClient client, String type, Throwable t) {
+        return client.send(new TextWebSocketFrame("{\"ok\":false,\"type\":\"" + type + "\",\"error\":\"" + t.getMessage() + "\""), priority());
     }
 }
@@ -0,0 +1,298 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A message payload that is read in chunks while it is written to the channel,
+ * so it never has to be held in memory as a whole.
+ *
+ * A source can be read only once. A chunk stays valid until the source is read
+ * twice more, so the reader must have written the chunk by then. A source may
+ * reuse the buffer of a chunk for the chunk after the next.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public abstract class ChunkedSource implements Closeable {
+
+    /**
+     * The size of the regions of a file that are mapped at once.
+     */
+    private final static long MAP_WINDOW = 64L * 1024L * 1024L;
+
+    private final static byte[] QUOTE = { '"' };
+
+    private final static byte[] HEX = "0123456789abcdef".getBytes();
+
+    /**
+     * Read the next chunk.
+     *
+     * @param maxBytes the maximum size of the chunk
+     * @return the chunk, or null if the source is exhausted
+     * @throws IOException if the source can not be read
+     */
+    public abstract ChannelBuffer next(int maxBytes) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * A source of the readable bytes of a buffer. The chunks are slices of the buffer.
+     */
+    public static ChunkedSource of(final ChannelBuffer buffer) {
+        return new ChunkedSource() {
+            private int offset = buffer.readerIndex();
+
+            @Override
+            public ChannelBuffer next(int maxBytes) {
+                int length = Math.min(buffer.writerIndex() - offset, maxBytes);
+                if (length <= 0) {
+                    return null;
+                }
+                ChannelBuffer chunk = buffer.slice(offset, length);
+                offset += length;
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * A source of the remaining bytes of a byte buffer, e.g. a {@link MappedByteBuffer}.
+     * The chunks are slices of the buffer.
+     */
+    public static ChunkedSource of(final ByteBuffer buffer) {
+        return new ChunkedSource() {
+            private final ByteBuffer remaining = buffer.duplicate();
+
+            @Override
+            public ChannelBuffer next(int maxBytes) {
+                int length = Math.min(remaining.remaining(), maxBytes);
+                if (length <= 0) {
+                    return null;
+                }
+                ByteBuffer chunk = remaining.slice();
+                chunk.limit(length);
+                remaining.position(remaining.position() + length);
+                return ChannelBuffers.wrappedBuffer(chunk);
+            }
+        };
+    }
+
+    /**
+     * A source of an input stream. The chunks are read into two buffers of maxBytes
+     * that are used in turn. The stream is closed when the source is closed.
+     *
+     * The stream is read by the thread that writes the message, which is often an
+     * I/O thread, so it must not wait for its data. Streams of memory or of local
+     * files are fine, a stream from the network should be copied into a file first.
+     */
+    public static ChunkedSource of(final InputStream in) {
+        return new ChunkedSource() {
+            private final byte[][] buffers = new byte[2][];
+            private int turn;
+
+            @Override
+            public ChannelBuffer next(int maxBytes) throws IOException {
+                byte[] b = buffers[turn];
+                if (b == null || b.length < maxBytes) {
+                    b = buffers[turn] = new byte[maxBytes];
+                }
+                int length = 0;
+                while (length < maxBytes) {
+                    int n = in.read(b, length, maxBytes - length);
+                    if (n < 0) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length == 0) {
+                    return null;
+                }
+                turn ^= 1;
+                return ChannelBuffers.wrappedBuffer(b, 0, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * A source of a file. The file is opened when the first chunk is read, and mapped
+     * into memory region by region. The chunks are slices of the mapped regions.
+     */
+    public static ChunkedSource of(final Path path) {
+        return new ChunkedSource() {
+            private FileChannel channel;
+            private long size;
+            private long position;
+            private MappedByteBuffer window;
+
+            @Override
+            public ChannelBuffer next(int maxBytes) throws IOException {
+                if (channel == null) {
+                    channel = FileChannel.open(path, StandardOpenOption.READ);
+                    size = channel.size();
+                }
+                if (window == null || !window.hasRemaining()) {
+                    if (position >= size) {
+                        return null;
+                    }
+                    long length = Math.min(MAP_WINDOW, size - position);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    position += length;
+                }
+                int length = Math.min(window.remaining(), maxBytes);
+                ByteBuffer chunk = window.slice();
+                chunk.limit(length);
+                window.position(window.position() + length);
+                return ChannelBuffers.wrappedBuffer(chunk);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * A source of the bytes of another source as a JSON string: in quotes, with
+     * quotes, backslashes and control characters escaped. The bytes of multibyte
+     * UTF-8 characters are passed as they are.
+     */
+    public static ChunkedSource jsonString(final ChunkedSource source) {
+        return concat(of(ChannelBuffers.wrappedBuffer(QUOTE)), new ChunkedSource() {
+            private ChannelBuffer pending;
+
+            @Override
+            public ChannelBuffer next(int maxBytes) throws IOException {
+                if (pending == null || !pending.readable()) {
+                    ChannelBuffer chunk = source.next(maxBytes);
+                    if (chunk == null) {
+                        return null;
+                    }
+                    pending = escape(chunk);
+                }
+                // escaping may have made the chunk larger than maxBytes
+                return pending.readSlice(Math.min(pending.readableBytes(), maxBytes));
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        }, of(ChannelBuffers.wrappedBuffer(QUOTE)));
+    }
+
+    /**
+     * Escape a chunk for a JSON string. A chunk without anything to escape is returned as it is.
+     */
+    private static ChannelBuffer escape(ChannelBuffer chunk) {
+        int start = chunk.readerIndex();
+        int end = chunk.writerIndex();
+        int i = start;
+        while (i < end && !needsEscape(chunk.getByte(i))) {
+            i++;
+        }
+        if (i == end) {
+            return chunk.slice();
+        }
+        ChannelBuffer escaped = ChannelBuffers.dynamicBuffer(end - start + 16);
+        escaped.writeBytes(chunk, start, i - start);
+        for (; i < end; i++) {
+            byte b = chunk.getByte(i);
+            if (!needsEscape(b)) {
+                escaped.writeByte(b);
+                continue;
+            }
+            escaped.writeByte('\\');
+            switch (b) {
+                case '"':
+                case '\\':
+                    escaped.writeByte(b);
+                    break;
+                case '\n':
+                    escaped.writeByte('n');
+                    break;
+                case '\r':
+                    escaped.writeByte('r');
+                    break;
+                case '\t':
+                    escaped.writeByte('t');
+                    break;
+                default:
+                    escaped.writeByte('u');
+                    escaped.writeByte('0');
+                    escaped.writeByte('0');
+                    escaped.writeByte(HEX[b >> 4]);
+                    escaped.writeByte(HEX[b & 0xf]);
+            }
+        }
+        return escaped;
+    }
+
+    private static boolean needsEscape(byte b) {
+        // bytes of multibyte characters are negative
+        return b == '"' || b == '\\' || (b >= 0 && b < 0x20);
+    }
+
+    /**
+     * A source of the concatenated chunks of other sources.
+     */
+    public static ChunkedSource concat(final ChunkedSource... sources) {
+        return new ChunkedSource() {
+            private int i;
+
+            @Override
+            public ChannelBuffer next(int maxBytes) throws IOException {
+                while (i < sources.length) {
+                    ChannelBuffer chunk = sources[i].next(maxBytes);
+                    if (chunk != null) {
+                        return chunk;
+                    }
+                    sources[i++].close();
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (; i < sources.length; i++) {
+                    sources[i].close();
+                }
+            }
+        };
+    }
+}
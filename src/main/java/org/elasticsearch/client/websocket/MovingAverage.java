@@ -0,0 +1,91 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An exponentially weighted moving average of sampled values,
+ * e.g. round trip times in nanoseconds.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class MovingAverage {
+
+    private final double alpha;
+    private final AtomicLong average = new AtomicLong(Double.doubleToLongBits(0.0d));
+    private final AtomicLong count = new AtomicLong();
+    private volatile long last;
+
+    /**
+     * Create a moving average
+     *
+     * @param alpha the weight of a new sample, between 0 and 1
+     */
+    public MovingAverage(double alpha) {
+        if (alpha <= 0.0d || alpha > 1.0d) {
+            throw new IllegalArgumentException("alpha must be in (0,1]: " + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    /**
+     * Add a sample to the average.
+     *
+     * @param value the sample
+     */
+    public void update(long value) {
+        this.last = value;
+        boolean first = count.getAndIncrement() == 0;
+        while (true) {
+            long bits = average.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = first ? value : current + alpha * (value - current);
+            if (average.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The current average, or 0 if no samples were taken
+     */
+    public double value() {
+        return Double.longBitsToDouble(average.get());
+    }
+
+    /**
+     * The most recent sample
+     */
+    public long last() {
+        return last;
+    }
+
+    /**
+     * The number of samples taken
+     */
+    public long count() {
+        return count.get();
+    }
+
+    @Override
+    public String toString() {
+        return "[avg=" + value() + ",last=" + last + ",count=" + count() + "]";
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Helpers for moving bytes between Elasticsearch and Netty without copying.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketBuffers {
+
+    private WebSocketBuffers() {
+    }
+
+    /**
+     * Wrap the bytes of a reference into a channel buffer. The bytes are
+     * only copied if the reference is not backed by an array.
+     *
+     * @param bytes the bytes reference
+     * @return the channel buffer
+     */
+    public static ChannelBuffer wrap(BytesReference bytes) {
+        if (bytes.hasArray()) {
+            return ChannelBuffers.wrappedBuffer(bytes.array(), bytes.arrayOffset(), bytes.length());
+        }
+        return ChannelBuffers.wrappedBuffer(bytes.toBytes());
+    }
+
+    /**
+     * Wrap the readable bytes of a channel buffer into a bytes reference. The bytes
+     * are only copied if the buffer is not backed by an array, e.g. a composite
+     * buffer of assembled fragments.
+     *
+     * @param buffer the channel buffer
+     * @return the bytes reference
+     */
+    public static BytesReference wrap(ChannelBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new BytesArray(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+        }
+        byte[] b = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), b);
+        return new BytesArray(b);
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.flush.FlushAction;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.UUID;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.flushRequest;
+
+/**
+ * Sends index and delete requests in batches, each batch followed by a flush,
+ * with a batch size and a number of concurrent batches that adapt to the load
+ * of the connection and the server.
+ *
+ * The operating point is controlled by additive increase and multiplicative
+ * decrease. A batch is congested if a write failed, or if the time until all
+ * of its requests were written to the socket, plus the current heartbeat round
+ * trip time, exceeds the latency target. A batch without congestion increases
+ * the batch size by a fixed step, and the concurrency by one once the maximum
+ * batch size is reached. A congested batch multiplies both by the decrease
+ * factor. A full socket buffer means the server does not read fast enough, so
+ * the write latency reflects the load of the server.
+ *
+ * Requests whose writes failed on the transport can be retried with a
+ * {@link WebSocketRetryPolicy}. Invalid requests and requests rejected by the
+ * memory budget are given up at once.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketBulkProcessor {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketBulkProcessor.class.getName());
+
+    private final WebSocketIngestClient client;
+
+    private int minBatchSize = 10;
+
+    private int maxBatchSize = 10000;
+
+    private int batchIncrement = 10;
+
+    private int maxConcurrency = 8;
+
+    private double decreaseFactor = 0.5d;
+
+    private long latencyTarget = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile int batchSize = 100;
+
+    private volatile int concurrency = 1;
+
+    private final MovingAverage latency = new MovingAverage(0.2d);
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    private List<Item> current = Lists.newArrayList();
+
+    private int inflight;
+
+    private int retrying;
+
+    private final Timer timer;
+
+    private WebSocketRetryPolicy retryPolicy;
+
+    private DeadLetterListener deadLetterListener = new DeadLetterListener() {
+        @Override
+        public void onDeadLetter(ActionRequest request, Throwable cause) {
+            logger.warn("giving up on request {}: {}", request, cause != null ? cause.getMessage() : null);
+        }
+    };
+
+    private final AtomicLong deadLetters = new AtomicLong();
+
+    private boolean closed;
+
+    private long blockTimeout = TimeValue.timeValueSeconds(30).millis();
+
+    public WebSocketBulkProcessor(WebSocketIngestClient client) {
+        this(client, null);
+    }
+
+    /**
+     * @param client the client
+     * @param timer the timer for the backoff of retries, or null for no retries
+     */
+    public WebSocketBulkProcessor(WebSocketIngestClient client, Timer timer) {
+        this.client = client;
+        this.timer = timer;
+    }
+
+    /**
+     * Retry requests whose writes failed on the transport, e.g. because the
+     * connection was lost. A retry sends the same request again, so index requests
+     * without an id get an id assigned before they are sent for the first time,
+     * and a retry can not create a duplicate document. Delete requests are
+     * idempotent. Failures that a retry can not cure, invalid requests and
+     * requests rejected by the memory budget, go to the dead letter listener at once.
+     *
+     * @param retryPolicy the retry policy, or null for no retries
+     * @param deadLetterListener receives the requests given up after the last retry
+     */
+    public WebSocketBulkProcessor retry(WebSocketRetryPolicy retryPolicy, DeadLetterListener deadLetterListener) {
+        if (retryPolicy != null && timer == null) {
+            throw new IllegalStateException("retries require a timer");
+        }
+        this.retryPolicy = retryPolicy;
+        if (deadLetterListener != null) {
+            this.deadLetterListener = deadLetterListener;
+        }
+        return this;
+    }
+
+    /**
+     * Set the bounds and the step of the batch size.
+     */
+    public WebSocketBulkProcessor batchSize(int min, int initial, int max, int increment) {
+        if (min < 1 || initial < min || max < initial || increment < 1) {
+            throw new IllegalArgumentException("invalid batch size bounds");
+        }
+        this.minBatchSize = min;
+        this.batchSize = initial;
+        this.maxBatchSize = max;
+        this.batchIncrement = increment;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of batches in flight.
+     */
+    public WebSocketBulkProcessor maxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Set the latency above which a batch counts as congested.
+     */
+    public WebSocketBulkProcessor latencyTarget(TimeValue latencyTarget) {
+        this.latencyTarget = TimeUnit.MILLISECONDS.toNanos(latencyTarget.millis());
+        return this;
+    }
+
+    /**
+     * Set the factor for the multiplicative decrease, between 0 and 1.
+     */
+    public WebSocketBulkProcessor decreaseFactor(double decreaseFactor) {
+        if (decreaseFactor <= 0.0d || decreaseFactor >= 1.0d) {
+            throw new IllegalArgumentException("decreaseFactor must be in (0,1): " + decreaseFactor);
+        }
+        this.decreaseFactor = decreaseFactor;
+        return this;
+    }
+
+    /**
+     * Set the maximum time a producer waits for a free slot when the batch is full.
+     */
+    public WebSocketBulkProcessor blockTimeout(TimeValue blockTimeout) {
+        this.blockTimeout = blockTimeout.millis();
+        return this;
+    }
+
+    /**
+     * The current batch size.
+     */
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * The current number of batches allowed in flight.
+     */
+    public int concurrency() {
+        return concurrency;
+    }
+
+    /**
+     * The moving average of the batch latencies, in nanoseconds.
+     */
+    public MovingAverage latency() {
+        return latency;
+    }
+
+    /**
+     * The number of failed writes, including failed retries and flushes.
+     */
+    public long errors() {
+        return errors.get();
+    }
+
+    /**
+     * The number of requests given up.
+     */
+    public long deadLetters() {
+        return deadLetters.get();
+    }
+
+    /**
+     * The number of completed batches.
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    public WebSocketBulkProcessor add(IndexRequest request) throws InterruptedException {
+        if (retryPolicy != null && request.id() == null) {
+            // a retry must not index the document twice under different generated ids
+            request.id(UUID.randomBase64UUID());
+        }
+        return add(new Item(request));
+    }
+
+    public WebSocketBulkProcessor add(DeleteRequest request) throws InterruptedException {
+        return add(new Item(request));
+    }
+
+    /**
+     * Add a request to the current batch. Blocks while the batch is full
+     * and the maximum number of batches is in flight, at most for the block timeout.
+     * On a thread that must not block, e.g. an I/O thread of the client, a full
+     * processor fails at once, because the batch in flight can only complete on
+     * such a thread.
+     *
+     * @throws IllegalStateException if the request could not be added
+     */
+    private WebSocketBulkProcessor add(Item item) throws InterruptedException {
+        List<Item> batch = null;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("bulk processor is closed");
+            }
+            long deadline = System.currentTimeMillis() + blockTimeout;
+            while (current.size() + 1 >= batchSize && inflight >= concurrency) {
+                await(deadline);
+            }
+            current.add(item);
+            if (current.size() >= batchSize) {
+                batch = take();
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        return this;
+    }
+
+    /**
+     * Send the current batch, even if it is not full. Waits like {@code add()}
+     * for a free slot.
+     *
+     * @throws IllegalStateException if no slot was free
+     */
+    public void flush() throws InterruptedException {
+        List<Item> batch;
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + blockTimeout;
+            while (!current.isEmpty() && inflight >= concurrency) {
+                await(deadline);
+            }
+            if (current.isEmpty()) {
+                return;
+            }
+            batch = take();
+        }
+        send(batch);
+    }
+
+    /**
+     * Wait for a completed batch until the deadline. Called with the lock held.
+     */
+    private void await(long deadline) throws InterruptedException {
+        if (WebSocketMemoryBudget.isNonBlockingThread()) {
+            throw new IllegalStateException("bulk processor is full, can not wait on a non-blocking thread: "
+                    + Thread.currentThread().getName());
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0L) {
+            throw new IllegalStateException("bulk processor is full, no batch completed within "
+                    + TimeValue.timeValueMillis(blockTimeout));
+        }
+        lock.wait(remaining);
+    }
+
+    /**
+     * Send the current batch and wait until all batches are written, and all
+     * retries are either written or given up.
+     *
+     * @return true if all batches were written before the timeout
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        flush();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Item> batch;
+        synchronized (lock) {
+            closed = true;
+            batch = ready();
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        synchronized (lock) {
+            while (inflight > 0 || retrying > 0 || !current.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take the current batch and reserve a slot for it. Called with the lock held.
+     */
+    private List<Item> take() {
+        inflight++;
+        List<Item> batch = current;
+        current = Lists.newArrayList();
+        return batch;
+    }
+
+    /**
+     * Take the current batch if it is due and a slot is free, without waiting.
+     * Called with the lock held.
+     */
+    private List<Item> ready() {
+        if (current.isEmpty() || inflight >= concurrency || (!closed && current.size() < batchSize)) {
+            return null;
+        }
+        return take();
+    }
+
+    private void send(List<Item> batch) {
+        final long t0 = System.nanoTime();
+        final AtomicInteger pending = new AtomicInteger(batch.size());
+        final List<Item> failed = Lists.newArrayList();
+        for (final Item item : batch) {
+            ChannelFuture future;
+            try {
+                future = write(item.request);
+            } catch (Exception e) {
+                logger.warn("invalid request {}: {}", item.request, e.getMessage());
+                item.cause = e;
+                synchronized (failed) {
+                    failed.add(item);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    completed(System.nanoTime() - t0, failed);
+                }
+                continue;
+            }
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        item.cause = future.getCause();
+                        synchronized (failed) {
+                            failed.add(item);
+                        }
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        completed(System.nanoTime() - t0, failed);
+                    }
+                }
+            });
+        }
+    }
+
+    private ChannelFuture write(ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            return client.write(IndexAction.INSTANCE, (IndexRequest) request);
+        }
+        return client.write(DeleteAction.INSTANCE, (DeleteRequest) request);
+    }
+
+    /**
+     * Whether a failure is a transport failure that another attempt may not hit.
+     * A full memory budget is not, because retries would only add to the load.
+     */
+    private static boolean retryable(Throwable cause) {
+        return cause instanceof IOException && !(cause instanceof WebSocketBudgetExceededException);
+    }
+
+    /**
+     * Called when all requests of a batch are written or failed.
+     */
+    private void completed(long nanos, List<Item> failed) {
+        // the flush follows the batch, it must not overtake queued requests
+        client.write(FlushAction.INSTANCE, flushRequest()).addListener(flushCompleted);
+        long rtt = client.roundTripTime().count() > 0L ? client.roundTripTime().last() : 0L;
+        long sample = nanos + rtt;
+        latency.update(sample);
+        batches.incrementAndGet();
+        if (!failed.isEmpty()) {
+            errors.addAndGet(failed.size());
+        }
+        List<Item> retries = Lists.newArrayList();
+        for (Item item : failed) {
+            if (retryPolicy != null && timer != null && item.attempt < retryPolicy.maxRetries()
+                    && retryable(item.cause)) {
+                retries.add(item);
+            } else {
+                // before the slot is released, so close() does not return before the dead letters are delivered
+                deadLetter(item);
+            }
+        }
+        List<Item> batch;
+        synchronized (lock) {
+            if (!failed.isEmpty() || sample > latencyTarget) {
+                batchSize = Math.max(minBatchSize, (int) (batchSize * decreaseFactor));
+                concurrency = Math.max(1, (int) (concurrency * decreaseFactor));
+            } else if (batchSize < maxBatchSize) {
+                batchSize = Math.min(maxBatchSize, batchSize + batchIncrement);
+            } else if (concurrency < maxConcurrency) {
+                concurrency++;
+            }
+            inflight--;
+            for (Item item : retries) {
+                retry(item);
+            }
+            batch = ready();
+            lock.notifyAll();
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        logger.debug("batch completed: latency={}ns failed={} {}", sample, failed.size(), this);
+    }
+
+    private final ChannelFutureListener flushCompleted = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+                errors.incrementAndGet();
+                logger.warn("flush after batch failed: {}", future.getCause() != null ? future.getCause().getMessage() : null);
+            }
+        }
+    };
+
+    /**
+     * Schedule a failed request for another attempt. Only the failed
+     * requests of a batch are sent again, in a later batch, unchanged and with
+     * the id they were first sent with. Called with the lock held.
+     */
+    private void retry(final Item item) {
+        retrying++;
+        long delay = retryPolicy.backoff(item.attempt++);
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                List<Item> batch;
+                synchronized (lock) {
+                    retrying--;
+                    current.add(item);
+                    batch = ready();
+                    lock.notifyAll();
+                }
+                if (batch != null) {
+                    send(batch);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void deadLetter(Item item) {
+        deadLetters.incrementAndGet();
+        try {
+            deadLetterListener.onDeadLetter(item.request, item.cause);
+        } catch (Exception e) {
+            logger.error("dead letter listener failed: {}", e, e.getMessage());
+        }
+    }
+
+    /**
+     * Receives the requests that could not be written after all retries, and
+     * the requests whose failures are not retried.
+     */
+    public interface DeadLetterListener {
+
+        void onDeadLetter(ActionRequest request, Throwable cause);
+    }
+
+    /**
+     * A request with the number of attempts so far.
+     */
+    static class Item {
+
+        final ActionRequest request;
+
+        int attempt;
+
+        Throwable cause;
+
+        Item(ActionRequest request) {
+            this.request = request;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[batchSize=" + batchSize + ",concurrency=" + concurrency
+                + ",latency=" + (long) latency.value() + "ns,errors=" + errors.get() + "]";
+    }
+}
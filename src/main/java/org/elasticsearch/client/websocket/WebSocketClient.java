@@ -57,7 +57,24 @@ public interface WebSocketClient {
      * @return Write future. Will fire when the data is sent.
      */
     ChannelFuture send(WebSocketFrame frame);
-    
-    
-    
+
+    /**
+     * Send data to server in the outbound lane of the given priority
+     *
+     * @param frame Data for sending
+     * @param priority the priority
+     * @return Write future. Will fire when the data is sent.
+     */
+    ChannelFuture send(WebSocketFrame frame, WebSocketPriority priority);
+
+    /**
+     * Send a text message to server, reading the payload from a source
+     * chunk by chunk while it is written
+     *
+     * @param source the source of the payload, closed after sending
+     * @param priority the priority
+     * @return Write future. Will fire when the whole message is sent.
+     */
+    ChannelFuture send(ChunkedSource source, WebSocketPriority priority);
+
 }
@@ -0,0 +1,227 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+
+/**
+ * The socket settings of clients.
+ *
+ * A setting that is not set is taken from the settings a client falls back to,
+ * usually those of its factory, and finally from the defaults of Netty and the
+ * operating system.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketClientSettings {
+
+    private Boolean tcpNoDelay;
+
+    private Boolean keepAlive;
+
+    private ByteSizeValue sendBufferSize;
+
+    private ByteSizeValue receiveBufferSize;
+
+    private TimeValue connectTimeout;
+
+    private ByteSizeValue writeBufferHighWaterMark;
+
+    private ByteSizeValue writeBufferLowWaterMark;
+
+    public WebSocketClientSettings() {
+    }
+
+    /**
+     * The settings of a factory that has not been given settings of its own:
+     * no Nagle delay, keep-alive probes, and a connect timeout of 10 seconds.
+     */
+    public static WebSocketClientSettings defaults() {
+        return new WebSocketClientSettings()
+                .tcpNoDelay(true)
+                .keepAlive(true)
+                .connectTimeout(TimeValue.timeValueSeconds(10));
+    }
+
+    /**
+     * Settings for interactive publish and subscribe: no Nagle delay, moderate
+     * socket buffers, and low water marks, so the outbound queue keeps messages
+     * by priority instead of handing them to a full socket.
+     */
+    public static WebSocketClientSettings lowLatency() {
+        return new WebSocketClientSettings()
+                .tcpNoDelay(true)
+                .keepAlive(true)
+                .sendBufferSize(new ByteSizeValue(64, ByteSizeUnit.KB))
+                .receiveBufferSize(new ByteSizeValue(64, ByteSizeUnit.KB))
+                .connectTimeout(TimeValue.timeValueSeconds(5))
+                .writeBufferWaterMarks(new ByteSizeValue(8, ByteSizeUnit.KB), new ByteSizeValue(32, ByteSizeUnit.KB));
+    }
+
+    /**
+     * Settings for bulk ingest: large socket buffers and high water marks, so
+     * the socket always has data to send.
+     */
+    public static WebSocketClientSettings highThroughput() {
+        return new WebSocketClientSettings()
+                .tcpNoDelay(false)
+                .keepAlive(true)
+                .sendBufferSize(new ByteSizeValue(1, ByteSizeUnit.MB))
+                .receiveBufferSize(new ByteSizeValue(1, ByteSizeUnit.MB))
+                .connectTimeout(TimeValue.timeValueSeconds(30))
+                .writeBufferWaterMarks(new ByteSizeValue(512, ByteSizeUnit.KB), new ByteSizeValue(2, ByteSizeUnit.MB));
+    }
+
+    public WebSocketClientSettings tcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public Boolean tcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public WebSocketClientSettings keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public Boolean keepAlive() {
+        return keepAlive;
+    }
+
+    public WebSocketClientSettings sendBufferSize(ByteSizeValue sendBufferSize) {
+        this.sendBufferSize = checkInt("sendBufferSize", sendBufferSize);
+        return this;
+    }
+
+    public ByteSizeValue sendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public WebSocketClientSettings receiveBufferSize(ByteSizeValue receiveBufferSize) {
+        this.receiveBufferSize = checkInt("receiveBufferSize", receiveBufferSize);
+        return this;
+    }
+
+    public ByteSizeValue receiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public WebSocketClientSettings connectTimeout(TimeValue connectTimeout) {
+        if (connectTimeout.millis() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("connect timeout too large: " + connectTimeout);
+        }
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public TimeValue connectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the write buffer water marks. A channel becomes unwritable when more than
+     * the high water mark is waiting to be written, and writable again when less
+     * than the low water mark is left.
+     */
+    public WebSocketClientSettings writeBufferWaterMarks(ByteSizeValue low, ByteSizeValue high) {
+        checkInt("writeBufferLowWaterMark", low);
+        checkInt("writeBufferHighWaterMark", high);
+        if (low.bytes() > high.bytes()) {
+            throw new IllegalArgumentException("low water mark " + low + " above high water mark " + high);
+        }
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+        return this;
+    }
+
+    public ByteSizeValue writeBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public ByteSizeValue writeBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * New settings with the settings of this object, and the settings of the
+     * other object where this object has none.
+     */
+    public WebSocketClientSettings fallbackTo(WebSocketClientSettings other) {
+        WebSocketClientSettings settings = new WebSocketClientSettings();
+        settings.tcpNoDelay = tcpNoDelay != null ? tcpNoDelay : other.tcpNoDelay;
+        settings.keepAlive = keepAlive != null ? keepAlive : other.keepAlive;
+        settings.sendBufferSize = sendBufferSize != null ? sendBufferSize : other.sendBufferSize;
+        settings.receiveBufferSize = receiveBufferSize != null ? receiveBufferSize : other.receiveBufferSize;
+        settings.connectTimeout = connectTimeout != null ? connectTimeout : other.connectTimeout;
+        if (writeBufferHighWaterMark != null) {
+            // the water marks are only valid as a pair
+            settings.writeBufferLowWaterMark = writeBufferLowWaterMark;
+            settings.writeBufferHighWaterMark = writeBufferHighWaterMark;
+        } else {
+            settings.writeBufferLowWaterMark = other.writeBufferLowWaterMark;
+            settings.writeBufferHighWaterMark = other.writeBufferHighWaterMark;
+        }
+        return settings;
+    }
+
+    /**
+     * Set the options of a bootstrap.
+     */
+    void apply(ClientBootstrap bootstrap) {
+        if (tcpNoDelay != null) {
+            bootstrap.setOption("tcpNoDelay", tcpNoDelay);
+        }
+        if (keepAlive != null) {
+            bootstrap.setOption("keepAlive", keepAlive);
+        }
+        if (sendBufferSize != null) {
+            bootstrap.setOption("sendBufferSize", (int) sendBufferSize.bytes());
+        }
+        if (receiveBufferSize != null) {
+            bootstrap.setOption("receiveBufferSize", (int) receiveBufferSize.bytes());
+        }
+        if (connectTimeout != null) {
+            bootstrap.setOption("connectTimeoutMillis", (int) connectTimeout.millis());
+        }
+        if (writeBufferHighWaterMark != null) {
+            bootstrap.setOption("writeBufferHighWaterMark", (int) writeBufferHighWaterMark.bytes());
+            bootstrap.setOption("writeBufferLowWaterMark", (int) writeBufferLowWaterMark.bytes());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "tcpNoDelay=" + tcpNoDelay + ",keepAlive=" + keepAlive
+                + ",sendBufferSize=" + sendBufferSize + ",receiveBufferSize=" + receiveBufferSize
+                + ",connectTimeout=" + connectTimeout
+                + ",writeBufferWaterMarks=" + writeBufferLowWaterMark + "/" + writeBufferHighWaterMark;
+    }
+
+    private static ByteSizeValue checkInt(String name, ByteSizeValue value) {
+        if (value.bytes() < 0 || value.bytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid " + name + ": " + value);
+        }
+        return value;
+    }
+}
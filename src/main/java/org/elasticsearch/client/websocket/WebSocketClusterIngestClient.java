@@ -0,0 +1,359 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.flush.FlushAction;
+import org.elasticsearch.action.flush.FlushRequest;
+import org.elasticsearch.action.publish.PublishAction;
+import org.elasticsearch.action.publish.PublishRequest;
+import org.elasticsearch.action.publish.PublishResponse;
+import org.elasticsearch.action.subscribe.SubscribeAction;
+import org.elasticsearch.action.subscribe.SubscribeRequest;
+import org.elasticsearch.action.subscribe.SubscribeResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.support.AbstractIngestClient;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import static org.elasticsearch.action.support.PlainActionFuture.newFuture;
+
+/**
+ * A client holding a connection to each of a list of websocket endpoints.
+ *
+ * Each request is routed to the connected node with the lowest score, where the score
+ * is the moving average of the heartbeat round trip time multiplied by the number of
+ * frames still waiting to be written on that connection. A node that disconnects is
+ * ejected from routing and probed with reconnects in exponentially growing intervals
+ * until it accepts the connection again.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketClusterIngestClient extends AbstractIngestClient {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketClusterIngestClient.class.getName());
+
+    /**
+     * The round trip time assumed for nodes without heartbeat samples, in nanoseconds.
+     */
+    private final static double DEFAULT_ROUND_TRIP_TIME = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private final Timer timer;
+
+    private final WebSocketIngestActionListener listener;
+
+    private final List<Node> nodes;
+
+    private volatile boolean closed;
+
+    private TimeValue minEjectTime = TimeValue.timeValueSeconds(1);
+
+    private TimeValue maxEjectTime = TimeValue.timeValueSeconds(30);
+
+    WebSocketClusterIngestClient(WebSocketIngestClientFactory factory, Timer timer,
+            List<URI> urls, WebSocketIngestActionListener listener) {
+        this.timer = timer;
+        this.listener = listener;
+        ImmutableList.Builder<Node> builder = ImmutableList.builder();
+        for (URI url : urls) {
+            Node node = new Node(url);
+            node.client = factory.newIngestClient(url, node);
+            builder.add(node);
+        }
+        this.nodes = builder.build();
+    }
+
+    /**
+     * Set the time a disconnected node is ejected before the first reconnect,
+     * and the maximum time between reconnects.
+     */
+    public WebSocketClusterIngestClient ejectTime(TimeValue min, TimeValue max) {
+        this.minEjectTime = min;
+        this.maxEjectTime = max;
+        return this;
+    }
+
+    /**
+     * The clients of all nodes, connected or not.
+     */
+    public List<WebSocketIngestClient> clients() {
+        ImmutableList.Builder<WebSocketIngestClient> builder = ImmutableList.builder();
+        for (Node node : nodes) {
+            builder.add(node.client);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Connect to all nodes.
+     */
+    public void connect() {
+        closed = false;
+        for (Node node : nodes) {
+            node.connect();
+        }
+    }
+
+    /**
+     * Disconnect from all nodes.
+     */
+    public void disconnect() {
+        closed = true;
+        for (Node node : nodes) {
+            node.client.disconnect();
+        }
+    }
+
+    /**
+     * Close all nodes. Connected nodes are closed after their queued frames, nodes
+     * that are still connecting are disconnected, and pending reconnects are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Node node : nodes) {
+            Timeout t = node.probe;
+            if (t != null) {
+                t.cancel();
+            }
+            if (node.client.isConnected()) {
+                node.client.close();
+            } else {
+                node.client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Select the client of the node with the best recent latency and queue depth.
+     *
+     * @return the client, or null if no node is available
+     */
+    public WebSocketIngestClient select() {
+        Node best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Node node : nodes) {
+            if (node.ejected || !node.client.isConnected()) {
+                continue;
+            }
+            double score = node.score();
+            if (score < bestScore) {
+                best = node;
+                bestScore = score;
+            }
+        }
+        return best != null ? best.client : null;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response>, C extends Client> ActionFuture<Response> execute(Action<Request, Response, RequestBuilder, C> action, Request request) {
+        WebSocketIngestClient client = select();
+        if (client == null) {
+            PlainActionFuture<Response> future = newFuture();
+            future.onFailure(new WebSocketException("no node available for [" + action.name() + "]"));
+            return future;
+        }
+        return client.execute(action, request);
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response>, C extends Client> void execute(Action<Request, Response, RequestBuilder, C> action, Request request, ActionListener<Response> listener) {
+        WebSocketIngestClient client = select();
+        if (client == null) {
+            listener.onFailure(new WebSocketException("no node available for [" + action.name() + "]"));
+            return;
+        }
+        client.execute(action, request, listener);
+    }
+
+    /**
+     * Send a flush request to all connected nodes, because each connection
+     * collects its own bulk on the server side.
+     *
+     * @return a future that completes when the flush is written to all connected
+     * nodes, and fails if the write to any node fails or no node is connected
+     */
+    public ListenableFuture<Void> flush(FlushRequest request) {
+        List<ListenableFuture<Void>> futures = Lists.newArrayList();
+        for (Node node : nodes) {
+            if (node.client.isConnected()) {
+                futures.add(node.client.flushAsync(request));
+            }
+        }
+        final SettableFuture<Void> future = SettableFuture.create();
+        if (futures.isEmpty()) {
+            future.setException(new WebSocketException("no node available for [" + FlushAction.NAME + "]"));
+            return future;
+        }
+        Futures.addCallback(Futures.allAsList(futures), new FutureCallback<List<Void>>() {
+            @Override
+            public void onSuccess(List<Void> result) {
+                future.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send a publish request to the best node.
+     */
+    public ActionFuture<PublishResponse> publish(PublishRequest request) {
+        return execute(PublishAction.INSTANCE, request);
+    }
+
+    /**
+     * Send a publish request to the best node.
+     */
+    public void publish(PublishRequest request, ActionListener<PublishResponse> listener) {
+        execute(PublishAction.INSTANCE, request, listener);
+    }
+
+    /**
+     * Send a subscribe request to the best node.
+     */
+    public ActionFuture<SubscribeResponse> subscribe(SubscribeRequest request) {
+        return execute(SubscribeAction.INSTANCE, request);
+    }
+
+    /**
+     * Send a subscribe request to the best node.
+     */
+    public void subscribe(SubscribeRequest request, ActionListener<SubscribeResponse> listener) {
+        execute(SubscribeAction.INSTANCE, request, listener);
+    }
+
+    /**
+     * A node, forwarding the events of its client to the listener of the cluster client.
+     */
+    class Node extends WebSocketIngestActionListener.Adapter {
+
+        final URI url;
+
+        WebSocketIngestClient client;
+
+        volatile boolean ejected;
+
+        // the pending reconnect, cancelled on close
+        volatile Timeout probe;
+
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        // consecutive failed connects, reset by the I/O thread and counted by the timer thread
+        private final AtomicInteger failures = new AtomicInteger();
+
+        Node(URI url) {
+            this.url = url;
+        }
+
+        double score() {
+            MovingAverage rtt = client.roundTripTime();
+            double latency = rtt.count() > 0 ? rtt.value() : DEFAULT_ROUND_TRIP_TIME;
+            return latency * (1 + client.pendingWrites());
+        }
+
+        void connect() {
+            client.connect().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        logger.warn("connect to {} failed: {}", url, future.getCause());
+                        eject();
+                    }
+                }
+            });
+        }
+
+        void eject() {
+            ejected = true;
+            if (closed || !probing.compareAndSet(false, true)) {
+                return;
+            }
+            long delay = Math.min(minEjectTime.millis() << Math.min(failures.getAndIncrement(), 16), maxEjectTime.millis());
+            logger.info("ejecting {} for {} ms", url, delay);
+            probe = timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    probe = null;
+                    probing.set(false);
+                    if (!closed) {
+                        connect();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onConnect(WebSocketIngestClient client) throws IOException {
+            failures.set(0);
+            ejected = false;
+            listener.onConnect(client);
+        }
+
+        @Override
+        public void onDisconnect(WebSocketIngestClient client) throws IOException {
+            eject();
+            listener.onDisconnect(client);
+        }
+
+        @Override
+        public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) throws IOException {
+            listener.onMessage(client, frame);
+        }
+
+        @Override
+        public void onResponse(ActionResponse response) {
+            listener.onResponse(response);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            listener.onFailure(e);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Maps;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Coalesces index and delete requests for the same document within a time window.
+ *
+ * Requests are keyed by index, type and id. A later request replaces an earlier
+ * request with the same key that has not been sent yet, so only the last version
+ * of a document in a window goes over the wire. At the end of each window, or when
+ * the number of keys reaches the limit, the buffered requests are sent in the order
+ * in which their keys were first seen. Index requests without an id can not be
+ * coalesced and are buffered under a key of their own.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketCoalescingBuffer {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketCoalescingBuffer.class.getName());
+
+    private final WebSocketIngestClient client;
+
+    private final Timer timer;
+
+    private final long window;
+
+    private final int maxKeys;
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile FailureListener failureListener = new FailureListener() {
+        @Override
+        public void onFailure(ActionRequest request, Throwable cause) {
+            logger.warn("failed to send request {}: {}", request, cause != null ? cause.getMessage() : null);
+        }
+    };
+
+    private Map<Object, ActionRequest> requests = Maps.newLinkedHashMap();
+
+    private volatile Timeout timeout;
+
+    private volatile boolean closed;
+
+    /**
+     * @param client the client that sends the requests
+     * @param timer the timer for the end of the windows
+     * @param window the length of a window
+     * @param maxKeys the number of keys that ends a window early
+     */
+    public WebSocketCoalescingBuffer(WebSocketIngestClient client, Timer timer, TimeValue window, int maxKeys) {
+        if (window.millis() < 1L || maxKeys < 1) {
+            throw new IllegalArgumentException("invalid window: " + window + ", " + maxKeys);
+        }
+        this.client = client;
+        this.timer = timer;
+        this.window = window.millis();
+        this.maxKeys = maxKeys;
+        schedule();
+    }
+
+    /**
+     * The number of requests replaced by a later request for the same document.
+     */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * The number of requests written to the socket.
+     */
+    public long sent() {
+        return sent.get();
+    }
+
+    /**
+     * The number of requests that were invalid or whose writes failed.
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Set the listener for requests that were invalid or whose writes failed.
+     * By default, the failures are logged.
+     */
+    public WebSocketCoalescingBuffer failureListener(FailureListener failureListener) {
+        this.failureListener = failureListener;
+        return this;
+    }
+
+    public WebSocketCoalescingBuffer add(IndexRequest request) {
+        return add(request.id() != null ?
+                new Key(request.index(), request.type(), request.id()) : new Object(), request);
+    }
+
+    public WebSocketCoalescingBuffer add(DeleteRequest request) {
+        return add(new Key(request.index(), request.type(), request.id()), request);
+    }
+
+    private WebSocketCoalescingBuffer add(Object key, ActionRequest request) {
+        // a full window is sent while holding the lock, so no two windows are sent at the same time
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("coalescing buffer is closed");
+            }
+            if (requests.put(key, request) != null) {
+                coalesced.incrementAndGet();
+            }
+            if (requests.size() >= maxKeys) {
+                send(take());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Send the buffered requests now. The windows are sent one after the other, in order,
+     * so a later version of a document never reaches the server before an earlier one.
+     */
+    public synchronized void flush() {
+        send(take());
+    }
+
+    /**
+     * Send the buffered requests and stop the window timer.
+     */
+    public synchronized void close() {
+        closed = true;
+        Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+        flush();
+    }
+
+    private Map<Object, ActionRequest> take() {
+        Map<Object, ActionRequest> batch = requests;
+        requests = Maps.newLinkedHashMap();
+        return batch;
+    }
+
+    private void send(Map<Object, ActionRequest> batch) {
+        for (final ActionRequest request : batch.values()) {
+            ChannelFuture future;
+            try {
+                if (request instanceof IndexRequest) {
+                    future = client.write(IndexAction.INSTANCE, (IndexRequest) request);
+                } else {
+                    future = client.write(DeleteAction.INSTANCE, (DeleteRequest) request);
+                }
+            } catch (Exception e) {
+                failed(request, e);
+                continue;
+            }
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        sent.incrementAndGet();
+                    } else {
+                        failed(request, future.getCause());
+                    }
+                }
+            });
+        }
+    }
+
+    private void failed(ActionRequest request, Throwable cause) {
+        failed.incrementAndGet();
+        try {
+            failureListener.onFailure(request, cause);
+        } catch (Exception e) {
+            logger.error("failure listener failed: {}", e, e.getMessage());
+        }
+    }
+
+    private void schedule() {
+        timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (closed || timeout.isCancelled()) {
+                    return;
+                }
+                flush();
+                schedule();
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Receives the requests that were invalid or whose writes failed.
+     */
+    public interface FailureListener {
+
+        void onFailure(ActionRequest request, Throwable cause);
+    }
+
+    /**
+     * The key of a document.
+     */
+    static class Key {
+
+        private final String index;
+
+        private final String type;
+
+        private final String id;
+
+        Key(String index, String type, String id) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return eq(index, k.index) && eq(type, k.type) && eq(id, k.id);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = index != null ? index.hashCode() : 0;
+            h = 31 * h + (type != null ? type.hashCode() : 0);
+            return 31 * h + (id != null ? id.hashCode() : 0);
+        }
+
+        private static boolean eq(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
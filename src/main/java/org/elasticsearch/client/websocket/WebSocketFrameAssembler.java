@@ -0,0 +1,193 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Assembles fragmented messages into a single text or binary frame.
+ *
+ * The payloads of the fragments are not copied, the assembled frame is backed by a
+ * composite buffer of the fragment buffers. Control frames received between the
+ * fragments are passed on immediately. One handler instance is used per connection.
+ *
+ * If a spill threshold is set, a message that grows beyond it is written to a
+ * temporary file as its fragments arrive, and the fragments are dropped from the
+ * heap. The assembled frame is then backed by a read-only mapping of the file. The
+ * file is deleted as soon as it is mapped; the mapping stays valid until the frame
+ * is garbage collected. A message that arrives in a single frame is never spilled,
+ * because it has already been read into the heap by the frame decoder.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketFrameAssembler extends SimpleChannelUpstreamHandler {
+
+    private final long maxMessageSize;
+
+    private WebSocketFrame first;
+
+    private List<ChannelBuffer> fragments;
+
+    private long size;
+
+    private final long spillThreshold;
+
+    private final Path spillDirectory;
+
+    private Path spillPath;
+
+    private FileChannel spill;
+
+    /**
+     * @param maxMessageSize the maximum size of an assembled message in bytes
+     */
+    public WebSocketFrameAssembler(long maxMessageSize) {
+        this(maxMessageSize, 0L, null);
+    }
+
+    /**
+     * @param maxMessageSize the maximum size of an assembled message in bytes
+     * @param spillThreshold the size in bytes above which a message is spilled to disk, or 0 for never
+     * @param spillDirectory the directory of the spill files, or null for the temporary directory
+     */
+    public WebSocketFrameAssembler(long maxMessageSize, long spillThreshold, Path spillDirectory) {
+        // neither a composite buffer nor a mapping can be larger
+        this.maxMessageSize = Math.min(maxMessageSize, Integer.MAX_VALUE);
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object message = e.getMessage();
+        if (message instanceof ContinuationWebSocketFrame) {
+            if (first == null) {
+                throw new WebSocketException("continuation frame without start of message");
+            }
+            ContinuationWebSocketFrame frame = (ContinuationWebSocketFrame) message;
+            append(frame.getBinaryData());
+            if (frame.isFinalFragment()) {
+                ChannelBuffer payload = spill != null ? mapped() :
+                        ChannelBuffers.wrappedBuffer(fragments.toArray(new ChannelBuffer[fragments.size()]));
+                WebSocketFrame assembled = first instanceof TextWebSocketFrame ?
+                        new TextWebSocketFrame(payload) : new BinaryWebSocketFrame(payload);
+                reset();
+                Channels.fireMessageReceived(ctx, assembled, e.getRemoteAddress());
+            }
+            return;
+        }
+        if ((message instanceof TextWebSocketFrame || message instanceof BinaryWebSocketFrame)
+                && !((WebSocketFrame) message).isFinalFragment()) {
+            if (first != null) {
+                throw new WebSocketException("start of message before end of previous message");
+            }
+            first = (WebSocketFrame) message;
+            fragments = Lists.newArrayList();
+            append(first.getBinaryData());
+            return;
+        }
+        ctx.sendUpstream(e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        reset();
+        ctx.sendUpstream(e);
+    }
+
+    private void append(ChannelBuffer buffer) throws IOException {
+        size += buffer.readableBytes();
+        if (size > maxMessageSize) {
+            reset();
+            throw new TooLongFrameException("message exceeds " + maxMessageSize + " bytes");
+        }
+        if (spill == null && spillThreshold > 0L && size > spillThreshold) {
+            spillPath = spillDirectory != null ?
+                    Files.createTempFile(spillDirectory, "websocket", ".message") :
+                    Files.createTempFile("websocket", ".message");
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            for (ChannelBuffer fragment : fragments) {
+                write(fragment);
+            }
+            fragments.clear();
+        }
+        if (spill != null) {
+            write(buffer);
+        } else {
+            fragments.add(buffer);
+        }
+    }
+
+    private void write(ChannelBuffer buffer) throws IOException {
+        for (ByteBuffer b : buffer.toByteBuffers()) {
+            while (b.hasRemaining()) {
+                spill.write(b);
+            }
+        }
+    }
+
+    /**
+     * Map the spill file of the message.
+     */
+    private ChannelBuffer mapped() throws IOException {
+        MappedByteBuffer mapped = spill.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        return ChannelBuffers.wrappedBuffer(mapped);
+    }
+
+    private void reset() {
+        first = null;
+        fragments = null;
+        size = 0L;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            try {
+                Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                // still mapped on some platforms
+                spillPath.toFile().deleteOnExit();
+            }
+            spill = null;
+            spillPath = null;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.action.subscribe.SubscribeRequest;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A Reactive Streams publisher of the text and binary frames received by a client.
+ *
+ * The demand of the subscriber controls the readability of the channel: when the
+ * demand is exhausted, the channel stops reading from the socket, and TCP flow
+ * control pushes back on the server. Frames that were already read are buffered
+ * until they are requested. Because readability is a property of the connection,
+ * there is one publisher per client, and it takes a single subscriber at a time.
+ * While a subscriber is subscribed, it receives the frames instead of
+ * {@link WebSocketIngestActionListener#onMessage}.
+ *
+ * The subscription outlives the connection. When the connection is lost, the
+ * subscriber waits for the frames of the next connection, on which the topics
+ * are subscribed again. The subscriber is completed only when the connection
+ * closes after {@link WebSocketIngestClient#close()}.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketFramePublisher implements Publisher<WebSocketFrame> {
+
+    private final WebSocketIngestClient client;
+
+    private final AtomicReference<FrameSubscription> subscription = new AtomicReference<FrameSubscription>();
+
+    private final Queue<SubscribeRequest> topics = new ConcurrentLinkedQueue<SubscribeRequest>();
+
+    private volatile Channel channel;
+
+    public WebSocketFramePublisher(WebSocketIngestClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Add a topic subscription. The subscribe request is sent whenever the
+     * connection is established.
+     */
+    public WebSocketFramePublisher topic(SubscribeRequest request) {
+        topics.add(request);
+        if (client.isConnected()) {
+            client.subscribe(request);
+        }
+        return this;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super WebSocketFrame> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        FrameSubscription s = new FrameSubscription(subscriber);
+        if (!subscription.compareAndSet(null, s)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("the publisher of a client allows only one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(s);
+        s.drain();
+    }
+
+    /**
+     * Called by the client handler after the handshake.
+     */
+    void connected(Channel channel) {
+        this.channel = channel;
+        for (SubscribeRequest request : topics) {
+            client.subscribe(request);
+        }
+        FrameSubscription s = subscription.get();
+        if (s != null) {
+            s.drain();
+        }
+    }
+
+    /**
+     * Called by the client handler for a received data frame.
+     *
+     * @return false if there is no subscriber, and the frame should go to the listener
+     */
+    boolean offer(WebSocketFrame frame) {
+        FrameSubscription s = subscription.get();
+        if (s == null) {
+            return false;
+        }
+        s.buffer.add(frame);
+        s.drain();
+        return true;
+    }
+
+    /**
+     * Called by the client handler when the connection is closed. If the client
+     * was closed, the subscriber is completed after the buffered frames have been
+     * requested, otherwise it waits for the next connection.
+     *
+     * @param last true if the client was closed
+     */
+    void closed(boolean last) {
+        channel = null;
+        FrameSubscription s = subscription.get();
+        if (s != null) {
+            if (last) {
+                s.done = true;
+            }
+            s.drain();
+        }
+    }
+
+    class FrameSubscription implements Subscription {
+
+        private final Subscriber<? super WebSocketFrame> subscriber;
+
+        private final Queue<WebSocketFrame> buffer = new ConcurrentLinkedQueue<WebSocketFrame>();
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        private volatile boolean done;
+
+        private volatile Throwable error;
+
+        // the readability last set on a channel, only accessed in the drain loop
+        private Channel readableChannel;
+
+        private boolean readable;
+
+        FrameSubscription(Subscriber<? super WebSocketFrame> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                error = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0L ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /**
+         * Emit buffered frames up to the demand, and adjust the readability of the channel.
+         * Only one thread at a time runs the loop, so the signals to the subscriber are serialized,
+         * and the last readability change reflects the latest demand.
+         */
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!cancelled) {
+                    if (error != null) {
+                        terminate();
+                        subscriber.onError(error);
+                    } else {
+                        long n = demand.get();
+                        long emitted = 0L;
+                        WebSocketFrame frame;
+                        while (emitted < n && !cancelled && (frame = buffer.peek()) != null) {
+                            buffer.poll();
+                            subscriber.onNext(frame);
+                            emitted++;
+                        }
+                        if (emitted > 0L && n != Long.MAX_VALUE) {
+                            demand.addAndGet(-emitted);
+                        }
+                        if (done && buffer.isEmpty() && !cancelled) {
+                            terminate();
+                            subscriber.onComplete();
+                        }
+                    }
+                }
+                if (cancelled) {
+                    terminate();
+                }
+                Channel ch = channel;
+                if (ch != null && ch.isOpen()) {
+                    if (ch != readableChannel) {
+                        readableChannel = ch;
+                        readable = true;
+                    }
+                    boolean wanted = cancelled || demand.get() > 0L;
+                    if (readable != wanted) {
+                        readable = wanted;
+                        ch.setReadable(wanted);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void terminate() {
+            cancelled = true;
+            buffer.clear();
+            // the frames go to the listener again
+            subscription.compareAndSet(this, null);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+
+/**
+ * Gathers encoded frames into one write.
+ *
+ * Between {@link #gather()} and {@link #flush(ChannelHandlerContext)}, the buffers written downstream
+ * are held back, and on flush they are written as one composite buffer, so the
+ * frames queued while a connection was set up, or written by one drain of the
+ * {@link WebSocketOutboundQueue}, leave in a single write instead of one write per
+ * frame. Only the writes of the thread that started gathering are held back; writes
+ * of other threads, and all writes at other times, pass through.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketGatheringHandler extends SimpleChannelDownstreamHandler {
+
+    private List<MessageEvent> gathered;
+
+    private Thread owner;
+
+    /**
+     * Start holding back the writes of the current thread.
+     */
+    public synchronized void gather() {
+        if (gathered == null) {
+            gathered = Lists.newArrayList();
+            owner = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Start holding back the writes of the current thread, unless writes are already held back.
+     *
+     * @return true if this call started gathering and must be followed by a flush
+     */
+    public synchronized boolean gatherIfIdle() {
+        if (gathered != null) {
+            return false;
+        }
+        gathered = Lists.newArrayList();
+        owner = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * Write the held back buffers as one buffer, and let writes pass through again.
+     *
+     * @param ctx a context of the pipeline of this handler
+     */
+    public synchronized void flush(ChannelHandlerContext ctx) {
+        final List<MessageEvent> events = gathered;
+        gathered = null;
+        owner = null;
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        ChannelHandlerContext context = ctx.getPipeline().getContext(this);
+        if (events.size() == 1) {
+            context.sendDownstream(events.get(0));
+            return;
+        }
+        ChannelBuffer[] buffers = new ChannelBuffer[events.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = (ChannelBuffer) events.get(i).getMessage();
+        }
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (MessageEvent event : events) {
+                    if (future.isSuccess()) {
+                        event.getFuture().setSuccess();
+                    } else {
+                        event.getFuture().setFailure(future.getCause());
+                    }
+                }
+            }
+        });
+        // still holding the lock, so no write overtakes the gathered ones
+        Channels.write(context, future, ChannelBuffers.wrappedBuffer(buffers));
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        synchronized (this) {
+            if (gathered != null && owner == Thread.currentThread() && e.getMessage() instanceof ChannelBuffer) {
+                gathered.add(e);
+                return;
+            }
+            ctx.sendDownstream(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Sends periodic ping frames after the handshake, measures the round trip time
+ * from the pong frames, and closes the connection if the server does not answer.
+ *
+ * A connection is declared dead when a number of pings have been written without
+ * any frame received since. Only pings that reached the channel are counted, so a
+ * ping that is still queued behind other frames is not taken for a missed pong.
+ * The count is checked on the reader idle events generated by an
+ * {@link org.jboss.netty.handler.timeout.IdleStateHandler} in front of this handler.
+ * One handler instance is used per connection.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketHeartbeatHandler extends IdleStateAwareChannelHandler {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketHeartbeatHandler.class.getName());
+
+    private final Timer timer;
+    private final long interval;
+    private final int maxMissedPongs;
+    private final WebSocketIngestClient client;
+    private volatile boolean active;
+    // pings written since the last frame was received, updated by the I/O and timer threads
+    private final AtomicInteger missed = new AtomicInteger();
+    private volatile Timeout timeout;
+
+    public WebSocketHeartbeatHandler(Timer timer, long interval, TimeUnit unit,
+            int maxMissedPongs, WebSocketIngestClient client) {
+        this.timer = timer;
+        this.interval = unit.toMillis(interval);
+        this.maxMissedPongs = maxMissedPongs;
+        this.client = client;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object message = e.getMessage();
+        missed.set(0);
+        if (message instanceof PongWebSocketFrame) {
+            ChannelBuffer data = ((PongWebSocketFrame) message).getBinaryData();
+            if (data.readableBytes() >= 8) {
+                client.roundTripTime().update(System.nanoTime() - data.getLong(data.readerIndex()));
+            }
+            return;
+        }
+        if (message instanceof PingWebSocketFrame) {
+            client.send(new PongWebSocketFrame(((PingWebSocketFrame) message).getBinaryData()), WebSocketPriority.CONTROL);
+            return;
+        }
+        ctx.sendUpstream(e);
+        if (!active && message instanceof HttpResponse) {
+            // the handler behind us has accepted the handshake response
+            active = true;
+            schedule(ctx.getChannel());
+        }
+    }
+
+    @Override
+    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) throws Exception {
+        if (!active || e.getState() != IdleState.READER_IDLE) {
+            return;
+        }
+        if (!ctx.getChannel().isReadable()) {
+            // reading is suspended by backpressure, pongs can not arrive
+            missed.set(0);
+            return;
+        }
+        int n = missed.get();
+        if (n >= maxMissedPongs) {
+            logger.warn("no response from {} after {} heartbeats, closing connection",
+                    ctx.getChannel().getRemoteAddress(), n);
+            active = false;
+            ctx.getChannel().close();
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        active = false;
+        Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+        ctx.sendUpstream(e);
+    }
+
+    private final ChannelFutureListener pingWritten = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+                missed.incrementAndGet();
+            }
+        }
+    };
+
+    private void schedule(final Channel channel) {
+        timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (!active || timeout.isCancelled() || !channel.isConnected()) {
+                    return;
+                }
+                ChannelBuffer payload = ChannelBuffers.buffer(8);
+                payload.writeLong(System.nanoTime());
+                client.send(new PingWebSocketFrame(payload), WebSocketPriority.CONTROL)
+                        .addListener(pingWritten);
+                schedule(channel);
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+}
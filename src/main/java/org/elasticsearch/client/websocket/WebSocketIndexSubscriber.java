@@ -0,0 +1,176 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.action.flush.FlushAction;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.flushRequest;
+
+/**
+ * A Reactive Streams subscriber that sends index requests over a client.
+ *
+ * The demand is the free send window: a number of requests is requested
+ * up front, and one more is requested each time a request frame has been
+ * written to the socket. A slow connection therefore slows down the upstream
+ * publisher. When the publisher completes, the subscriber waits for the
+ * outstanding writes and sends a flush request.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketIndexSubscriber implements Subscriber<IndexRequest> {
+
+    private final WebSocketIngestClient client;
+
+    private final int window;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Subscription subscription;
+
+    private volatile boolean completed;
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private final ChannelFutureListener written = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+                fail(future.getCause());
+            } else if (failure.get() == null && !completed) {
+                subscription.request(1L);
+            }
+            if (inflight.decrementAndGet() == 0 && completed) {
+                finish();
+            }
+        }
+    };
+
+    /**
+     * @param client the client
+     * @param window the maximum number of requests sent but not yet written to the socket
+     */
+    public WebSocketIndexSubscriber(WebSocketIngestClient client, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.client = client;
+        this.window = window;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        if (s == null) {
+            throw new NullPointerException("subscription");
+        }
+        if (subscription != null) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        s.request(window);
+    }
+
+    @Override
+    public void onNext(IndexRequest request) {
+        if (request == null) {
+            throw new NullPointerException("request");
+        }
+        if (failure.get() != null) {
+            return;
+        }
+        inflight.incrementAndGet();
+        ChannelFuture future;
+        try {
+            future = client.write(IndexAction.INSTANCE, request);
+        } catch (Exception e) {
+            inflight.decrementAndGet();
+            fail(e);
+            return;
+        }
+        future.addListener(written);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (t == null) {
+            throw new NullPointerException("throwable");
+        }
+        if (failure.compareAndSet(null, t)) {
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        completed = true;
+        if (inflight.get() == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Wait until the publisher has completed and all requests are written, or a failure occurred.
+     *
+     * @return true if the subscriber is done, false if the timeout elapsed
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * The failure of the upstream publisher or of a write, or null.
+     */
+    public Throwable failure() {
+        return failure.get();
+    }
+
+    private void fail(Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            subscription.cancel();
+            done.countDown();
+        }
+    }
+
+    private void finish() {
+        if (done.getCount() == 0L || !finished.compareAndSet(false, true)) {
+            return;
+        }
+        client.write(FlushAction.INSTANCE, flushRequest()).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                done.countDown();
+            }
+        });
+    }
+}
@@ -19,6 +19,10 @@
 
 package org.elasticsearch.client.websocket;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.Executor;
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionFuture;
 import org.elasticsearch.action.ActionListener;
@@ -26,10 +30,14 @@ import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.action.WebSocketActionModule;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.flush.FlushAction;
 import org.elasticsearch.action.flush.FlushRequest;
 import org.elasticsearch.action.flush.FlushRequestBuilder;
 import org.elasticsearch.action.flush.FlushResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.publish.PublishAction;
 import org.elasticsearch.action.publish.PublishRequest;
 import org.elasticsearch.action.publish.PublishRequestBuilder;
@@ -43,6 +51,7 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.client.support.AbstractIngestClient;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 
@@ -51,6 +60,9 @@ public class WebSocketIngestClient extends AbstractIngestClient
 
     private WebSocketActionModule actions = new WebSocketActionModule();
     private WebSocketIngestClientHandler handler;
+    private final MovingAverage roundTripTime = new MovingAverage(0.2d);
+    private volatile WebSocketFramePublisher publisher;
+    private volatile Executor executor = MoreExecutors.sameThreadExecutor();
 
     public WebSocketIngestClient setHandler(WebSocketIngestClientHandler handler) {
         this.handler = handler;
@@ -62,6 +74,84 @@ public class WebSocketIngestClient extends AbstractIngestClient
         return handler.channel();
     }
 
+    /**
+     * True if the client is connected and the websocket handshake is completed.
+     */
+    public boolean isConnected() {
+        return handler.isConnected();
+    }
+
+    /**
+     * The number of frames sent but not yet written to the socket.
+     */
+    public int pendingWrites() {
+        return handler.pendingWrites();
+    }
+
+    /**
+     * The moving average of the heartbeat round trip times, in nanoseconds.
+     */
+    public MovingAverage roundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Set the executor that completes the futures of the asynchronous methods.
+     * Defaults to the thread that completes the write, mostly the I/O thread, so
+     * callbacks added to the futures must not block unless an executor is set.
+     */
+    public WebSocketIngestClient executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * The publisher of the data frames received by this client. Subscribing to it
+     * takes the frames away from the listener, and its demand controls reading
+     * from the connection.
+     */
+    public synchronized WebSocketFramePublisher publisher() {
+        if (publisher == null) {
+            publisher = new WebSocketFramePublisher(this);
+            handler.setPublisher(publisher);
+        }
+        return publisher;
+    }
+
+    /**
+     * A publisher of the messages of a topic. The subscribe request is sent
+     * whenever the client connects.
+     */
+    public WebSocketFramePublisher publisher(SubscribeRequest request) {
+        return publisher().topic(request);
+    }
+
+    /**
+     * Keep the recent messages of each topic received by this client in a replay
+     * buffer, so listeners added to the buffer later see them first.
+     */
+    public WebSocketIngestClient replay(WebSocketReplayBuffer replayBuffer) {
+        handler.setReplayBuffer(replayBuffer);
+        return this;
+    }
+
+    /**
+     * Receive the messages of this client as views of the received bytes. Text frames
+     * then go to the message listener instead of the action listener.
+     */
+    public WebSocketIngestClient messageListener(WebSocketMessageListener messageListener) {
+        handler.setMessageListener(messageListener);
+        return this;
+    }
+
+    /**
+     * A subscriber that sends index requests, with a demand of at most window
+     * requests not yet written to the socket.
+     */
+    public WebSocketIndexSubscriber indexSubscriber(int window) {
+        return new WebSocketIndexSubscriber(this, window);
+    }
+
     @Override
     public ChannelFuture connect() {
         return handler.connect();
@@ -77,9 +167,20 @@ public class WebSocketIngestClient extends AbstractIngestClient
         return handler.send(frame);
     }
 
+    @Override
+    public ChannelFuture send(WebSocketFrame frame, WebSocketPriority priority) {
+        return handler.send(frame, priority);
+    }
+
+    @Override
+    public ChannelFuture send(ChunkedSource source, WebSocketPriority priority) {
+        return handler.send(source, priority);
+    }
+
     @Override
     public void close() {
-        handler.send(new CloseWebSocketFrame());
+        // written after the frames of all lanes
+        handler.send(new CloseWebSocketFrame(), WebSocketPriority.CONTROL);
     }
 
     @Override
@@ -94,6 +195,105 @@ public class WebSocketIngestClient extends AbstractIngestClient
         websocketAction.execute(this, request, listener);
     }
 
+    /**
+     * Send a request and return the future of the write of the request frame.
+     *
+     * @return the future of the write, failed if the client is not connected
+     */
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response>, C extends Client> ChannelFuture write(Action<Request, Response, RequestBuilder, C> action, Request request) {
+        WebSocketAction<Request, Response> websocketAction = actions.getAction(action.name());
+        return websocketAction.write(this, request);
+    }
+
+    /**
+     * Send a request obtained from a recycler, and release it to the recycler when the
+     * request frame is written. The request must not be used after this call.
+     *
+     * @return the future of the write, failed if the client is not connected
+     */
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response>, C extends Client> ChannelFuture write(Action<Request, Response, RequestBuilder, C> action, Request request, WebSocketRecycler<Request> recycler) {
+        ChannelFuture future;
+        try {
+            future = write(action, request);
+        } catch (RuntimeException e) {
+            recycler.release(request);
+            throw e;
+        }
+        recycler.releaseOnComplete(future, request);
+        return future;
+    }
+
+    /**
+     * Send a request without waiting. The returned future is write-acknowledged: it completes
+     * with null when the request frame is written to the socket, or fails if the write fails.
+     * It carries no response, because it does not wait for the server, whose answers arrive at
+     * the listener of the client. The future completes on the executor of this client, see
+     * {@link #executor(Executor)}. Any number of requests may be pending on the connection
+     * at the same time.
+     */
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response>, C extends Client> ListenableFuture<Void> executeAsync(Action<Request, Response, RequestBuilder, C> action, Request request) {
+        final SettableFuture<Void> future = SettableFuture.create();
+        ChannelFuture write;
+        try {
+            write = write(action, request);
+        } catch (Exception e) {
+            future.setException(e);
+            return future;
+        }
+        final Executor e = executor;
+        write.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture write) throws Exception {
+                e.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (write.isSuccess()) {
+                            future.set(null);
+                        } else {
+                            future.setException(write.getCause());
+                        }
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send an index request without waiting.
+     */
+    public ListenableFuture<Void> indexAsync(IndexRequest request) {
+        return executeAsync(IndexAction.INSTANCE, request);
+    }
+
+    /**
+     * Send a delete request without waiting.
+     */
+    public ListenableFuture<Void> deleteAsync(DeleteRequest request) {
+        return executeAsync(DeleteAction.INSTANCE, request);
+    }
+
+    /**
+     * Send a flush request without waiting.
+     */
+    public ListenableFuture<Void> flushAsync(FlushRequest request) {
+        return executeAsync(FlushAction.INSTANCE, request);
+    }
+
+    /**
+     * Send a publish request without waiting.
+     */
+    public ListenableFuture<Void> publishAsync(PublishRequest request) {
+        return executeAsync(PublishAction.INSTANCE, request);
+    }
+
+    /**
+     * Send a subscribe request without waiting.
+     */
+    public ListenableFuture<Void> subscribeAsync(SubscribeRequest request) {
+        return executeAsync(SubscribeAction.INSTANCE, request);
+    }
+
     /**
      * Send a flush request to the server.
      */
@@ -19,7 +19,18 @@
 package org.elasticsearch.client.websocket;
 
 import java.net.URI;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
@@ -27,6 +38,10 @@ import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.handler.ssl.SslBufferPool;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
 
 /**
  * A factory for creating WebSocket ingest clients.
@@ -35,10 +50,231 @@ import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
  */
 public class WebSocketIngestClientFactory  {
 
+    // the I/O and timer threads never wait for a memory budget
     private NioClientSocketChannelFactory socketChannelFactory = new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
-    
+            Executors.newCachedThreadPool(WebSocketMemoryBudget.nonBlocking(Executors.defaultThreadFactory())),
+            Executors.newCachedThreadPool(WebSocketMemoryBudget.nonBlocking(Executors.defaultThreadFactory())));
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            WebSocketMemoryBudget.nonBlocking(Executors.defaultThreadFactory()));
+
+    private TimeValue heartbeatInterval = TimeValue.timeValueSeconds(5);
+
+    private int maxMissedPongs = 3;
+
+    private ByteSizeValue fragmentSize = new ByteSizeValue(0);
+
+    private ByteSizeValue maxMessageSize = new ByteSizeValue(100, ByteSizeUnit.MB);
+
+    private ByteSizeValue inboundSpillThreshold = new ByteSizeValue(0);
+
+    private Path inboundSpillDirectory;
+
+    private WebSocketClientSettings settings = WebSocketClientSettings.defaults();
+
+    private int handshakeQueueSize = 1024;
+
+    private WebSocketMemoryBudget memoryBudget;
+
+    private WebSocketTrafficRecorder recorder;
+
+    private boolean unpackBatches;
+
+    private SSLContext sslContext;
+
+    private String[] cipherSuites;
+
+    private int sslSessionCacheSize;
+
+    private TimeValue sslSessionTimeout;
+
+    private SslBufferPool sslBufferPool;
+
+    /**
+     * Set the heartbeat of the clients created from now on. A ping frame is sent
+     * every interval, and a connection is closed if maxMissedPongs pings have been
+     * written without any frame received since.
+     *
+     * @param interval the ping interval, or null to disable the heartbeat
+     * @param maxMissedPongs the number of written pings without a response before a connection is declared dead
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory heartbeat(TimeValue interval, int maxMissedPongs) {
+        if (maxMissedPongs < 1) {
+            throw new IllegalArgumentException("maxMissedPongs must be positive: " + maxMissedPongs);
+        }
+        this.heartbeatInterval = interval;
+        this.maxMissedPongs = maxMissedPongs;
+        return this;
+    }
+
+    /**
+     * Set the fragmentation of the clients created from now on. Outgoing text
+     * and binary frames larger than the fragment size are split into continuation
+     * frames, incoming fragments are assembled up to the maximum message size.
+     *
+     * @param fragmentSize the maximum payload of an outgoing frame, or 0 for no fragmentation
+     * @param maxMessageSize the maximum size of an assembled incoming message
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory fragmentation(ByteSizeValue fragmentSize, ByteSizeValue maxMessageSize) {
+        if (fragmentSize.bytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("fragment size too large: " + fragmentSize);
+        }
+        this.fragmentSize = fragmentSize;
+        this.maxMessageSize = maxMessageSize;
+        return this;
+    }
+
+    /**
+     * Spill incoming fragmented messages larger than a threshold to disk while they
+     * are assembled, for the clients created from now on. Such messages are passed
+     * to the listener as frames backed by a memory mapping of the spill file instead
+     * of heap buffers.
+     *
+     * @param threshold the size above which a message is spilled, or 0 to never spill
+     * @param directory the directory of the spill files, or null for the temporary directory
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory inboundSpill(ByteSizeValue threshold, Path directory) {
+        this.inboundSpillThreshold = threshold;
+        this.inboundSpillDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Set the socket settings of the clients created from now on. Settings that
+     * are not set are left to Netty and the operating system.
+     *
+     * @param settings the socket settings, e.g. {@link WebSocketClientSettings#lowLatency()}
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory settings(WebSocketClientSettings settings) {
+        this.settings = settings;
+        return this;
+    }
+
+    /**
+     * Set the number of frames that the clients created from now on queue while
+     * they connect. Frames sent between connect() and the completed handshake are
+     * written together as soon as the handshake is completed. When the queue is
+     * full, further sends fail at once.
+     *
+     * @param handshakeQueueSize the maximum number of queued frames
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory handshakeQueue(int handshakeQueueSize) {
+        if (handshakeQueueSize < 0) {
+            throw new IllegalArgumentException("handshake queue size must not be negative: " + handshakeQueueSize);
+        }
+        this.handshakeQueueSize = handshakeQueueSize;
+        return this;
+    }
+
+    /**
+     * Set the budget for the queued outbound payloads, shared by all clients
+     * created from now on.
+     *
+     * @param memoryBudget the budget, or null for no limit
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory memoryBudget(WebSocketMemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Set whether the clients created from now on unpack the batches of a
+     * {@link WebSocketPublishBatcher} and pass the messages to their listeners one by
+     * one. Unpacking scans every received text frame, so it is off by default and
+     * should only be turned on for clients that subscribe to batched topics.
+     *
+     * @param unpackBatches true to unpack batches
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory unpackBatches(boolean unpackBatches) {
+        this.unpackBatches = unpackBatches;
+        return this;
+    }
+
+    /**
+     * Record the frames of the clients created from now on, in both directions,
+     * into the capture file of a recorder. The recorder is shared by the clients
+     * and must be closed by the caller.
+     *
+     * @param recorder the traffic recorder, or null to stop recording
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory record(WebSocketTrafficRecorder recorder) {
+        this.recorder = recorder;
+        return this;
+    }
+
+    /**
+     * Set the TLS context of the wss clients created from now on. All clients share
+     * the context, and so its cache of client sessions. A client that reconnects to
+     * the same host and port resumes its session with an abbreviated handshake.
+     * Without a context, the factory creates a context of its own with the default
+     * key and trust managers of the JVM, the default context of the JVM is never used.
+     *
+     * @param sslContext the TLS context
+     * @param cipherSuites the enabled cipher suites, or null for the defaults of the context
+     * @return this factory
+     */
+    public synchronized WebSocketIngestClientFactory ssl(SSLContext sslContext, String... cipherSuites) {
+        this.sslContext = sslContext;
+        this.cipherSuites = cipherSuites != null && cipherSuites.length > 0 ? cipherSuites : null;
+        return this;
+    }
+
+    /**
+     * Set the cache of TLS sessions available for resumption. The settings are applied
+     * to the TLS context of this factory when a wss client is created.
+     *
+     * @param size the maximum number of cached sessions, or 0 for no limit
+     * @param timeout the time after which a cached session can no longer be resumed
+     * @return this factory
+     */
+    public synchronized WebSocketIngestClientFactory sslSessionCache(int size, TimeValue timeout) {
+        this.sslSessionCacheSize = size;
+        this.sslSessionTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Set the size of the pool of buffers for encrypted packets, shared by all wss
+     * clients created from now on. Without a pool of its own, every connection
+     * uses the default pool of Netty.
+     *
+     * @param size the maximum size of the pool
+     * @return this factory
+     */
+    public WebSocketIngestClientFactory sslBufferPool(ByteSizeValue size) {
+        if (size.bytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("SSL buffer pool too large: " + size);
+        }
+        this.sslBufferPool = new SslBufferPool((int) size.bytes());
+        return this;
+    }
+
+    private synchronized SSLContext sslContext() {
+        if (sslContext == null) {
+            try {
+                // a context of our own, the session cache of the default context belongs to the JVM
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new WebSocketException("no SSL context", e);
+            }
+        }
+        if (sslSessionTimeout != null) {
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            sessions.setSessionCacheSize(sslSessionCacheSize);
+            sessions.setSessionTimeout((int) sslSessionTimeout.seconds());
+        }
+        return sslContext;
+    }
+
     /**
      * Create a new WebSocket ingest client
      *
@@ -47,19 +283,72 @@ public class WebSocketIngestClientFactory  {
      * @return  WebSocket ingest client
      */
     public WebSocketIngestClient newIngestClient(final URI url, final WebSocketIngestActionListener listener) {
+        return newIngestClient(url, listener, null);
+    }
+
+    /**
+     * Create a new WebSocket ingest client with socket settings of its own
+     *
+     * @param url URL to connect to.
+     * @param listener Callback interface to receive events
+     * @param overrides the socket settings that override the settings of this factory, or null
+     * @return  WebSocket ingest client
+     */
+    public WebSocketIngestClient newIngestClient(final URI url, final WebSocketIngestActionListener listener,
+            WebSocketClientSettings overrides) {
         String protocol = url.getScheme();
         if (!protocol.equals("ws") && !protocol.equals("wss")) {
             throw new IllegalArgumentException("unsupported protocol: " + protocol);
         }
         final ClientBootstrap bootstrap = new ClientBootstrap(socketChannelFactory);
+        (overrides != null ? overrides.fallbackTo(settings) : settings).apply(bootstrap);
         final WebSocketIngestClient client = new WebSocketIngestClient();
-        final WebSocketIngestClientHandler clientHandler = new WebSocketIngestClientHandler(bootstrap, url, client, listener);
+        final WebSocketIngestClientHandler clientHandler = new WebSocketIngestClientHandler(bootstrap, url, client, listener,
+                (int) fragmentSize.bytes());
+        clientHandler.setHandshakeQueueSize(handshakeQueueSize);
+        clientHandler.setMemoryBudget(memoryBudget);
+        clientHandler.setUnpackBatches(unpackBatches);
+        final long maxMessage = maxMessageSize.bytes();
+        final long spillThreshold = inboundSpillThreshold.bytes();
+        final Path spillDirectory = inboundSpillDirectory;
+        final long interval = heartbeatInterval != null ? heartbeatInterval.millis() : 0L;
+        final int missed = maxMissedPongs;
+        final SSLContext context = protocol.equals("wss") ? sslContext() : null;
+        final String[] suites = cipherSuites;
+        final SslBufferPool bufferPool = sslBufferPool;
+        final WebSocketTrafficRecorder trafficRecorder = recorder;
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
                 ChannelPipeline pipeline = Channels.pipeline();
+                if (context != null) {
+                    // host and port select the cached session to resume
+                    SSLEngine engine = context.createSSLEngine(url.getHost(), port(url));
+                    engine.setUseClientMode(true);
+                    if (suites != null) {
+                        engine.setEnabledCipherSuites(suites);
+                    }
+                    SSLParameters parameters = engine.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    engine.setSSLParameters(parameters);
+                    SslHandler ssl = bufferPool != null ? new SslHandler(engine, bufferPool) : new SslHandler(engine);
+                    // the websocket handshake starts after the TLS handshake
+                    ssl.setIssueHandshake(true);
+                    pipeline.addLast("ssl", ssl);
+                }
+                pipeline.addLast("gather", new WebSocketGatheringHandler());
                 pipeline.addLast("decoder", new HttpResponseDecoder());
                 pipeline.addLast("encoder", new HttpRequestEncoder());
+                if (trafficRecorder != null) {
+                    // next to the frame codecs, so fragments and control frames are recorded as on the wire
+                    pipeline.addLast("recorder", trafficRecorder);
+                }
+                if (interval > 0L) {
+                    pipeline.addLast("idle", new IdleStateHandler(timer, interval, 0L, 0L, TimeUnit.MILLISECONDS));
+                    pipeline.addLast("heartbeat", new WebSocketHeartbeatHandler(timer, interval, TimeUnit.MILLISECONDS,
+                            missed, client));
+                }
+                pipeline.addLast("assembler", new WebSocketFrameAssembler(maxMessage, spillThreshold, spillDirectory));
                 pipeline.addLast("ws-handler", clientHandler);
                 return pipeline;
             }
@@ -68,7 +357,66 @@ public class WebSocketIngestClientFactory  {
         return client;
     }
     
+    /**
+     * Create a new WebSocket ingest client for a list of nodes
+     *
+     * @param urls URLs of the nodes to connect to.
+     * @param listener Callback interface to receive events of all nodes
+     * @return WebSocket cluster ingest client
+     */
+    public WebSocketClusterIngestClient newClusterIngestClient(final List<URI> urls, final WebSocketIngestActionListener listener) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("no URLs given");
+        }
+        return new WebSocketClusterIngestClient(this, timer, urls, listener);
+    }
+
+    /**
+     * Create a new bulk processor for a client, with retries scheduled on the timer of this factory.
+     *
+     * @param client the client
+     * @return the bulk processor
+     */
+    public WebSocketBulkProcessor newBulkProcessor(WebSocketIngestClient client) {
+        return new WebSocketBulkProcessor(client, timer);
+    }
+
+    /**
+     * Create a new coalescing buffer for a client, with the windows timed by the timer of this factory.
+     *
+     * @param client the client
+     * @param window the length of a window
+     * @param maxKeys the number of keys that ends a window early
+     * @return the coalescing buffer
+     */
+    public WebSocketCoalescingBuffer newCoalescingBuffer(WebSocketIngestClient client, TimeValue window, int maxKeys) {
+        return new WebSocketCoalescingBuffer(client, timer, window, maxKeys);
+    }
+
+    /**
+     * Create a new publish batcher for a client, with the windows timed by the timer of this factory.
+     *
+     * @param client the client
+     * @param window the time a batch of a topic is kept open
+     * @param maxBytes the size of the messages that sends a batch early
+     * @return the publish batcher
+     */
+    public WebSocketPublishBatcher newPublishBatcher(WebSocketIngestClient client, TimeValue window, ByteSizeValue maxBytes) {
+        return new WebSocketPublishBatcher(client, timer, window, maxBytes);
+    }
+
+    /**
+     * The port of a websocket URL, with the defaults of the ws and wss schemes.
+     */
+    static int port(URI url) {
+        if (url.getPort() != -1) {
+            return url.getPort();
+        }
+        return "wss".equals(url.getScheme()) ? 443 : 80;
+    }
+
     public void shutdown() {        
+        timer.stop();
         socketChannelFactory.releaseExternalResources();
     }
 
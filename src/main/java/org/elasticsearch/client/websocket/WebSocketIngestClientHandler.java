@@ -18,27 +18,33 @@
  */
 package org.elasticsearch.client.websocket;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelFuture;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
-import org.jboss.netty.handler.codec.http.HttpHeaders.Names;
-import org.jboss.netty.handler.codec.http.HttpHeaders.Values;
-import org.jboss.netty.handler.codec.http.HttpMethod;
-import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.HttpVersion;
-import org.jboss.netty.handler.codec.http.websocketx.WebSocket00FrameDecoder;
-import org.jboss.netty.handler.codec.http.websocketx.WebSocket00FrameEncoder;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketVersion;
 import org.jboss.netty.util.CharsetUtil;
 
 /**
@@ -53,57 +59,163 @@ public class WebSocketIngestClientHandler extends SimpleChannelUpstreamHandler {
     private final URI url;
     private final WebSocketIngestClient client;
     private final WebSocketIngestActionListener listener;
-    private boolean handshakeCompleted = false;
-    private Channel channel;
+    private volatile WebSocketClientHandshaker handshaker;
+    private volatile Channel channel;
+    private volatile ChannelHandlerContext ctx;
+    private final WebSocketOutboundQueue queue;
+    private volatile WebSocketFramePublisher publisher;
+    private volatile WebSocketReplayBuffer replayBuffer;
+    private volatile WebSocketMessageListener messageListener;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private volatile int handshakeQueueSize = 1024;
+    // the number of frames queued while the connection is set up
+    private final AtomicInteger handshakeQueued = new AtomicInteger();
+    private volatile WebSocketMemoryBudget budget;
+    private volatile boolean unpackBatches;
+    private volatile boolean closeRequested;
+    private final ChannelFutureListener writeCompleted = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            pendingWrites.decrementAndGet();
+        }
+    };
 
     public WebSocketIngestClientHandler(ClientBootstrap bootstrap, URI url, 
             WebSocketIngestClient client, WebSocketIngestActionListener listener) {
+        this(bootstrap, url, client, listener, 0);
+    }
+
+    public WebSocketIngestClientHandler(ClientBootstrap bootstrap, URI url,
+            WebSocketIngestClient client, WebSocketIngestActionListener listener, int fragmentSize) {
         this.bootstrap = bootstrap;
         this.url = url;
         this.client = client;
         this.listener = listener;
+        this.queue = new WebSocketOutboundQueue(fragmentSize);
     }
     
     public Channel channel() {
         return channel;
     }
 
+    /**
+     * Set the publisher that receives the data frames while it has a subscriber.
+     */
+    public void setPublisher(WebSocketFramePublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Set the replay buffer that keeps the recent data frames of each topic.
+     */
+    public void setReplayBuffer(WebSocketReplayBuffer replayBuffer) {
+        this.replayBuffer = replayBuffer;
+    }
+
+    /**
+     * Set the listener that receives the text frames as message views instead of the action listener.
+     */
+    public void setMessageListener(WebSocketMessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    /**
+     * Set the maximum number of frames queued while the connection is set up.
+     */
+    public void setHandshakeQueueSize(int handshakeQueueSize) {
+        this.handshakeQueueSize = handshakeQueueSize;
+    }
+
+    /**
+     * Set the budget for the payloads of the queued data frames.
+     */
+    public void setMemoryBudget(WebSocketMemoryBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Set whether received batch frames are unpacked into their messages. Unpacking
+     * scans every received text frame, so it is off unless batches are expected.
+     */
+    public void setUnpackBatches(boolean unpackBatches) {
+        this.unpackBatches = unpackBatches;
+    }
+
+    public boolean isConnected() {
+        WebSocketClientHandshaker h = handshaker;
+        return channel != null && h != null && h.isHandshakeComplete();
+    }
+
+    /**
+     * The number of frames queued or written but not yet flushed to the socket.
+     */
+    public int pendingWrites() {
+        return pendingWrites.get();
+    }
+
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent event) throws Exception {
-        String path = url.getPath();
-        if (url.getQuery() != null && url.getQuery().length() > 0) {
-            path = url.getPath() + "?" + url.getQuery();
-        }
-        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
-        request.addHeader(Names.UPGRADE, Values.WEBSOCKET);
-        request.addHeader(Names.CONNECTION, Values.UPGRADE);
-        request.addHeader(Names.HOST, url.getHost());
-        request.addHeader(Names.ORIGIN, "http://" + url.getHost());
-        event.getChannel().write(request);
-        ctx.getPipeline().replace("encoder", "ws-encoder", new WebSocket00FrameEncoder());
+        // RFC 6455, required for ping/pong control frames
+        handshaker = new WebSocketClientHandshakerFactory()
+                .newHandshaker(url, WebSocketVersion.V13, null, false, new HashMap<String, String>());
+        this.ctx = ctx;
         this.channel = event.getChannel();
+        handshaker.handshake(channel);
     }
 
     @Override
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent event) throws Exception {
         listener.onDisconnect(client);
-        handshakeCompleted = false;
-        channel = null;
+        if (channel == ctx.getChannel()) {
+            // not if connect() has already started a new connection, whose handshaker
+            // and queued frames must survive the late close of the old one
+            handshaker = null;
+            channel = null;
+            handshakeQueued.set(0);
+            queue.fail(new ClosedChannelException());
+            WebSocketFramePublisher p = publisher;
+            if (p != null) {
+                // a subscriber stays for the next connection unless the client was closed
+                p.closed(closeRequested);
+            }
+        }
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent event) throws Exception {
+        // the channel may have become writable again
+        if (isConnected()) {
+            queue.drain(ctx);
+        }
+        ctx.sendUpstream(event);
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent event) throws Exception {
-        if (!handshakeCompleted) {
-            HttpResponse response = (HttpResponse) event.getMessage();
-            final HttpResponseStatus status = new HttpResponseStatus(101, "Web Socket Protocol Handshake");
-            final boolean validStatus = response.getStatus().equals(status);
-            final boolean validUpgrade = response.getHeader(Names.UPGRADE).equals(Values.WEBSOCKET);
-            final boolean validConnection = response.getHeader(Names.CONNECTION).equals(Values.UPGRADE);
-            if (!validStatus || !validUpgrade || !validConnection) {
-                throw new WebSocketException("Invalid handshake response");
+        WebSocketClientHandshaker h = handshaker;
+        if (h == null || ctx.getChannel() != channel) {
+            // a late message of a connection that has been replaced
+            return;
+        }
+        if (!h.isHandshakeComplete()) {
+            h.finishHandshake(ctx.getChannel(), (HttpResponse) event.getMessage());
+            // the frames sent while connecting leave in one write
+            WebSocketGatheringHandler gatherer = ctx.getPipeline().get(WebSocketGatheringHandler.class);
+            if (gatherer != null) {
+                gatherer.gather();
+            }
+            try {
+                queue.drain(ctx);
+            } finally {
+                if (gatherer != null) {
+                    gatherer.flush(ctx);
+                }
+            }
+            handshakeQueued.set(0);
+            WebSocketFramePublisher p = publisher;
+            if (p != null) {
+                p.connected(ctx.getChannel());
             }
-            handshakeCompleted = true;
-            ctx.getPipeline().replace("decoder", "ws-decoder", new WebSocket00FrameDecoder());
             listener.onConnect(client);
             return;
         }
@@ -112,6 +224,45 @@ public class WebSocketIngestClientHandler extends SimpleChannelUpstreamHandler {
             throw new WebSocketException("Unexpected HttpResponse (status=" + response.getStatus() + ", content=" + response.getContent().toString(CharsetUtil.UTF_8) + ")");
         }
         WebSocketFrame frame = (WebSocketFrame) event.getMessage();
+        if (frame instanceof CloseWebSocketFrame) {
+            ctx.getChannel().close();
+            return;
+        }
+        if (unpackBatches && frame instanceof TextWebSocketFrame) {
+            WebSocketMessage message = new WebSocketMessage(frame.getBinaryData());
+            List<ChannelBuffer> batch = message.batch();
+            if (batch != null) {
+                // the messages of a batch reach the listeners one by one, as if they were published one by one
+                for (ChannelBuffer buffer : batch) {
+                    deliver(new TextWebSocketFrame(buffer), null);
+                }
+                return;
+            }
+            deliver(frame, message);
+            return;
+        }
+        deliver(frame, null);
+    }
+
+    /**
+     * Pass a received frame to the replay buffer and the listeners.
+     *
+     * @param message the view of the frame if it was already created, or null
+     */
+    private void deliver(WebSocketFrame frame, WebSocketMessage message) throws IOException {
+        WebSocketReplayBuffer r = replayBuffer;
+        if (r != null) {
+            r.record(frame);
+        }
+        WebSocketFramePublisher p = publisher;
+        if (p != null && p.offer(frame)) {
+            return;
+        }
+        WebSocketMessageListener m = messageListener;
+        if (m != null && frame instanceof TextWebSocketFrame) {
+            m.onMessage(client, message != null ? message : new WebSocketMessage(frame.getBinaryData()));
+            return;
+        }
         listener.onMessage(client, frame);
     }
 
@@ -123,7 +274,11 @@ public class WebSocketIngestClientHandler extends SimpleChannelUpstreamHandler {
     }
 
     public ChannelFuture connect() {
-        return bootstrap.connect(new InetSocketAddress(url.getHost(), url.getPort()));
+        ChannelFuture future = bootstrap.connect(new InetSocketAddress(url.getHost(), WebSocketIngestClientFactory.port(url)));
+        // frames sent from now on are queued until the handshake is completed
+        closeRequested = false;
+        channel = future.getChannel();
+        return future;
     }
 
     public ChannelFuture disconnect() {
@@ -134,10 +289,125 @@ public class WebSocketIngestClientHandler extends SimpleChannelUpstreamHandler {
     }
 
     public ChannelFuture send(WebSocketFrame frame) {
-        if (channel == null) {
-            return null;
+        return send(frame, WebSocketPriority.BULK);
+    }
+
+    public ChannelFuture send(WebSocketFrame frame, WebSocketPriority priority) {
+        Channel ch = channel;
+        if (ch == null) {
+            return notConnected();
+        }
+        final WebSocketMemoryBudget b = budget;
+        long bytes = 0L;
+        if (b != null && priority != WebSocketPriority.CONTROL
+                && (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame)) {
+            bytes = frame.getBinaryData().readableBytes();
+            try {
+                if (!b.acquire(bytes)) {
+                    if (b.policy() == WebSocketMemoryBudget.Policy.SPILL && frame instanceof TextWebSocketFrame
+                            && !WebSocketMemoryBudget.isNonBlockingThread()) {
+                        return send(b.spill(frame.getBinaryData()), priority);
+                    }
+                    return Channels.failedFuture(ch,
+                            new WebSocketBudgetExceededException("outbound memory budget exceeded: " + b));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Channels.failedFuture(ch, e);
+            } catch (IOException e) {
+                return Channels.failedFuture(ch, e);
+            }
+        }
+        // reserved after the budget, so a rejected or spilled frame does not take a place
+        if (!isConnected() && !reserveHandshakeSlot()) {
+            if (bytes > 0L) {
+                b.release(bytes);
+            }
+            return Channels.failedFuture(ch, new WebSocketException("handshake queue full: " + handshakeQueueSize));
+        }
+        ChannelFuture future = Channels.future(ch);
+        pendingWrites.incrementAndGet();
+        future.addListener(writeCompleted);
+        if (bytes > 0L) {
+            final long acquired = bytes;
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    b.release(acquired);
+                }
+            });
+        }
+        if (frame instanceof CloseWebSocketFrame) {
+            // the last frame of a connection, whatever its priority
+            closeRequested = true;
+            queue.offerClose((CloseWebSocketFrame) frame, future);
+        } else {
+            queue.offer(frame, future, priority);
+        }
+        if (isConnected()) {
+            queue.drain(ctx);
+        } else if (!ch.isOpen()) {
+            // closed while the frame was queued
+            queue.fail(new ClosedChannelException());
+        }
+        return future;
+    }
+
+    public ChannelFuture send(ChunkedSource source, WebSocketPriority priority) {
+        Channel ch = channel;
+        if (ch == null) {
+            close(source);
+            return notConnected();
+        }
+        if (!isConnected() && !reserveHandshakeSlot()) {
+            // a spilled frame deletes its file when the source is closed
+            close(source);
+            return Channels.failedFuture(ch, new WebSocketException("handshake queue full: " + handshakeQueueSize));
+        }
+        ChannelFuture future = Channels.future(ch);
+        pendingWrites.incrementAndGet();
+        future.addListener(writeCompleted);
+        queue.offer(source, future, priority);
+        if (isConnected()) {
+            queue.drain(ctx);
+        } else if (!ch.isOpen()) {
+            // closed while the frame was queued
+            queue.fail(new ClosedChannelException());
+        }
+        return future;
+    }
+
+    /**
+     * Reserve a place for a frame sent while the connection is set up.
+     *
+     * @return false if the handshake queue is full
+     */
+    private boolean reserveHandshakeSlot() {
+        while (true) {
+            int queued = handshakeQueued.get();
+            if (queued >= handshakeQueueSize) {
+                return false;
+            }
+            if (handshakeQueued.compareAndSet(queued, queued + 1)) {
+                return true;
+            }
         }
-        return channel.write(frame);
     }
 
+    private static void close(ChunkedSource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * A failed future for a client that was never connected, or is disconnected.
+     */
+    private static ChannelFuture notConnected() {
+        ChannelFuture future = new DefaultChannelFuture(null, false);
+        future.setFailure(new WebSocketException("not connected"));
+        return future;
+    }
 }
@@ -24,9 +24,14 @@ import org.elasticsearch.action.flush.FlushRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.publish.PublishRequest;
 import org.elasticsearch.action.subscribe.SubscribeRequest;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesReference;
 
 public class WebSocketIngestRequests {
 
+    // the defaults of a new index request, for resetting pooled requests, never modified
+    private final static IndexRequest INDEX_DEFAULTS = new IndexRequest();
+
     public static IndexRequest indexRequest() {
         return new IndexRequest();
     }
@@ -47,4 +52,45 @@ public class WebSocketIngestRequests {
         return new SubscribeRequest();
     }
 
+    /**
+     * A pool of index requests for {@link WebSocketIngestClient#write(org.elasticsearch.action.Action,
+     * org.elasticsearch.action.ActionRequest, WebSocketRecycler)}. A released request is reset to
+     * the defaults of a new request, and its source is dropped, so nothing of a previous use can
+     * leak into the next one.
+     *
+     * @param capacity the maximum number of pooled requests
+     */
+    public static WebSocketRecycler<IndexRequest> indexRequestPool(int capacity) {
+        return new WebSocketRecycler<IndexRequest>(capacity, new WebSocketRecycler.Factory<IndexRequest>() {
+            @Override
+            public IndexRequest create() {
+                return new IndexRequest();
+            }
+
+            @Override
+            public boolean reset(IndexRequest request) {
+                request.index(null);
+                request.type(null);
+                request.id(null);
+                request.routing(null);
+                request.parent(null);
+                request.timestamp(null);
+                request.ttl(null);
+                request.source((BytesReference) null, false);
+                request.contentType(Requests.INDEX_CONTENT_TYPE);
+                request.opType(INDEX_DEFAULTS.opType());
+                request.version(INDEX_DEFAULTS.version());
+                request.versionType(INDEX_DEFAULTS.versionType());
+                request.refresh(INDEX_DEFAULTS.refresh());
+                request.percolate(INDEX_DEFAULTS.percolate());
+                request.timeout(INDEX_DEFAULTS.timeout());
+                request.replicationType(INDEX_DEFAULTS.replicationType());
+                request.consistencyLevel(INDEX_DEFAULTS.consistencyLevel());
+                request.operationThreaded(INDEX_DEFAULTS.operationThreaded());
+                request.listenerThreaded(INDEX_DEFAULTS.listenerThreaded());
+                return true;
+            }
+        });
+    }
+
 }
@@ -0,0 +1,303 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A budget for the payloads of the frames that are queued but not yet written,
+ * shared by all clients of a factory.
+ *
+ * The used bytes are counted in a number of stripes, each on a cache line of
+ * its own, and a thread adds to the stripe selected by its id. Producers on
+ * many threads and the I/O threads that release the bytes therefore do not
+ * contend on a single counter. The sum of the stripes is the used budget.
+ *
+ * When a frame does not fit, the policy decides: block the producer until
+ * enough bytes are released, reject the frame with a
+ * {@link WebSocketBudgetExceededException}, or spill the payload into a
+ * temporary file that is streamed to the channel and deleted afterwards.
+ * Control frames are never held back by the budget.
+ *
+ * The threads of a factory, that is the I/O threads and the timer thread, must
+ * not wait and must not write files. A frame sent from one of them that does not
+ * fit is rejected at once, whatever the policy, so a callback that sends is never
+ * stuck until the block timeout while it holds up the writes that would release
+ * the budget. Producers that want to block or spill send from threads of their own.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketMemoryBudget {
+
+    /**
+     * What to do with a frame that does not fit into the budget.
+     */
+    public enum Policy {
+
+        /**
+         * Wait until the frame fits, at most for the block timeout, then reject it.
+         * Frames sent from the threads of a factory are rejected at once.
+         */
+        BLOCK,
+
+        /**
+         * Fail the frame at once.
+         */
+        REJECT,
+
+        /**
+         * Write the payload of text frames to a temporary file and stream it from there.
+         * Other frames, and frames sent from the threads of a factory, are rejected.
+         */
+        SPILL
+    }
+
+    private final static ThreadLocal<Boolean> nonBlocking = new ThreadLocal<Boolean>();
+
+    private final static int STRIPES = 16;
+
+    // longs per stripe, so each stripe is on a cache line of its own
+    private final static int PADDING = 8;
+
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PADDING);
+
+    private final long limit;
+
+    private final Policy policy;
+
+    private final Object lock = new Object();
+
+    private volatile int waiters;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong spilled = new AtomicLong();
+
+    private long blockTimeout = TimeValue.timeValueSeconds(30).millis();
+
+    private Path spillDirectory;
+
+    /**
+     * @param limit the maximum size of the queued payloads of all clients
+     * @param policy the policy for frames that do not fit
+     */
+    public WebSocketMemoryBudget(ByteSizeValue limit, Policy policy) {
+        this.limit = limit.bytes();
+        this.policy = policy;
+    }
+
+    /**
+     * Set the maximum time a producer is blocked.
+     */
+    public WebSocketMemoryBudget blockTimeout(TimeValue blockTimeout) {
+        this.blockTimeout = blockTimeout.millis();
+        return this;
+    }
+
+    /**
+     * Set the directory of the spill files. Defaults to the temporary directory.
+     */
+    public WebSocketMemoryBudget spillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * Wrap a thread factory so that its threads never wait for a budget or spill to disk.
+     */
+    public static ThreadFactory nonBlocking(final ThreadFactory factory) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return factory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        nonBlocking.set(Boolean.TRUE);
+                        runnable.run();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Whether the current thread must never wait for a budget or spill to disk.
+     */
+    public static boolean isNonBlockingThread() {
+        return nonBlocking.get() != null;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    /**
+     * The bytes in use.
+     */
+    public long used() {
+        long used = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            used += stripes.get(i * PADDING);
+        }
+        return used;
+    }
+
+    /**
+     * The number of frames that were rejected.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * The number of frames that were spilled to disk.
+     */
+    public long spilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Take bytes from the budget if they fit, without waiting.
+     */
+    public boolean tryAcquire(long bytes) {
+        int stripe = stripe();
+        stripes.addAndGet(stripe, bytes);
+        if (used() <= limit) {
+            return true;
+        }
+        stripes.addAndGet(stripe, -bytes);
+        return false;
+    }
+
+    /**
+     * Take bytes from the budget, waiting for them if the policy is to block and
+     * the current thread may wait.
+     *
+     * @return true if the bytes were taken, false if the frame must be rejected or spilled
+     */
+    public boolean acquire(long bytes) throws InterruptedException {
+        if (tryAcquire(bytes)) {
+            return true;
+        }
+        boolean mayBlock = !isNonBlockingThread();
+        if (policy == Policy.BLOCK && mayBlock) {
+            long deadline = System.currentTimeMillis() + blockTimeout;
+            synchronized (lock) {
+                waiters++;
+                try {
+                    while (true) {
+                        if (tryAcquire(bytes)) {
+                            return true;
+                        }
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0L) {
+                            break;
+                        }
+                        lock.wait(remaining);
+                    }
+                } finally {
+                    waiters--;
+                }
+            }
+        }
+        if (policy != Policy.SPILL || !mayBlock) {
+            rejected.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Give bytes back to the budget.
+     */
+    public void release(long bytes) {
+        stripes.addAndGet(stripe(), -bytes);
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write a payload to a spill file. The file is written on the current thread,
+     * which must not be a thread of a factory.
+     *
+     * @return a source of the spill file, which deletes the file when it is closed
+     */
+    public ChunkedSource spill(ChannelBuffer payload) throws IOException {
+        if (isNonBlockingThread()) {
+            throw new IllegalStateException("spill on a non-blocking thread: " + Thread.currentThread().getName());
+        }
+        final Path path = spillDirectory != null ?
+                Files.createTempFile(spillDirectory, "websocket", ".spill") :
+                Files.createTempFile("websocket", ".spill");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (ByteBuffer buffer : payload.toByteBuffers()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        spilled.incrementAndGet();
+        final ChunkedSource source = ChunkedSource.of(path);
+        return new ChunkedSource() {
+            @Override
+            public ChannelBuffer next(int maxBytes) throws IOException {
+                return source.next(maxBytes);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    source.close();
+                } finally {
+                    Files.deleteIfExists(path);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "used=" + used() + ",limit=" + limit + ",policy=" + policy
+                + ",rejected=" + rejected + ",spilled=" + spilled;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+}
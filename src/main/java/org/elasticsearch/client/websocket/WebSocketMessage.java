@@ -0,0 +1,405 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A read-only view of a received message frame.
+ *
+ * A message frame has the form
+ * <pre>
+ * { "ok" : true, "type" : "message", "data" : { "topic" : ..., "timestamp" : ..., "data" : ... } }
+ * </pre>
+ * The envelope is scanned on the first access to one of its fields. The scan only
+ * finds the positions of the fields in the bytes, and the accessors return slices
+ * of the received buffer, so a message can be forwarded or stored without decoding
+ * it. Only the topic is decoded, because it is a String.
+ *
+ * The buffers of Netty 3 are neither pooled nor reference counted, so a view stays
+ * valid for as long as it is referenced, even after the listener returned, and
+ * there is nothing to release. The bytes must not be modified.
+ *
+ * A frame may carry a batch of messages of one topic, see {@link WebSocketPublishBatcher}.
+ * Its data is an object with the single field {@link #BATCH}, an array of the messages.
+ * Clients unpack batches before the messages reach the listeners.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketMessage {
+
+    /**
+     * The field of the data of a batch frame that holds the messages.
+     */
+    public final static String BATCH = "_batch";
+
+    private final ChannelBuffer buffer;
+
+    private boolean scanned;
+
+    // the positions of the values in the buffer, the topic without its quotes
+    private int topicStart = -1;
+
+    private int topicEnd;
+
+    private int timestampStart = -1;
+
+    private int timestampEnd;
+
+    private int dataStart = -1;
+
+    private int dataEnd;
+
+    private String topic;
+
+    public WebSocketMessage(ChannelBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    /**
+     * The bytes of the whole frame.
+     */
+    public ChannelBuffer buffer() {
+        return ChannelBuffers.unmodifiableBuffer(buffer.duplicate());
+    }
+
+    /**
+     * The bytes of the whole frame.
+     */
+    public BytesReference bytes() {
+        return WebSocketBuffers.wrap(buffer);
+    }
+
+    /**
+     * True if the frame is a message with data.
+     */
+    public boolean isMessage() {
+        scan();
+        return dataStart >= 0;
+    }
+
+    /**
+     * The topic of the message, or null.
+     */
+    public String topic() {
+        scan();
+        if (topic == null && topicStart >= 0) {
+            topic = decode(topicStart, topicEnd);
+        }
+        return topic;
+    }
+
+    /**
+     * The time the message was published, or -1 if it is unknown.
+     */
+    public long timestamp() {
+        scan();
+        if (timestampStart < 0) {
+            return -1L;
+        }
+        long timestamp = 0L;
+        for (int i = timestampStart; i < timestampEnd; i++) {
+            byte b = buffer.getByte(i);
+            if (b < '0' || b > '9') {
+                return -1L;
+            }
+            timestamp = timestamp * 10 + (b - '0');
+        }
+        return timestamp;
+    }
+
+    /**
+     * The bytes of the data of the message, or null.
+     */
+    public BytesReference data() {
+        scan();
+        return dataStart >= 0 ? WebSocketBuffers.wrap(buffer.slice(dataStart, dataEnd - dataStart)) : null;
+    }
+
+    /**
+     * The bytes of the data of the message, as a buffer, or null.
+     */
+    public ChannelBuffer dataBuffer() {
+        scan();
+        return dataStart >= 0 ? ChannelBuffers.unmodifiableBuffer(buffer.slice(dataStart, dataEnd - dataStart)) : null;
+    }
+
+    /**
+     * The messages of a batch frame, each with the envelope of the batch, or null if
+     * this frame is not a batch.
+     */
+    public List<WebSocketMessage> unpack() {
+        List<ChannelBuffer> frames = batch();
+        if (frames == null) {
+            return null;
+        }
+        List<WebSocketMessage> messages = Lists.newArrayListWithCapacity(frames.size());
+        for (ChannelBuffer frame : frames) {
+            messages.add(new WebSocketMessage(frame));
+        }
+        return messages;
+    }
+
+    /**
+     * The frames of the messages of a batch frame, or null if this frame is not a batch.
+     * A frame is a composite of the envelope of the batch and the slice of one message,
+     * so nothing is copied.
+     */
+    List<ChannelBuffer> batch() {
+        scan();
+        if (dataStart < 0 || buffer.getByte(dataStart) != '{') {
+            return null;
+        }
+        int end = dataEnd - 1;
+        int i = ws(dataStart + 1);
+        if (i >= end || buffer.getByte(i) != '"') {
+            return null;
+        }
+        int name = i + 1;
+        int nameEnd = string(i) - 1;
+        if (!equals(name, nameEnd, BATCH)) {
+            return null;
+        }
+        i = ws(nameEnd + 1);
+        if (i >= end || buffer.getByte(i) != ':') {
+            return null;
+        }
+        i = ws(i + 1);
+        if (i >= end || buffer.getByte(i) != '[') {
+            return null;
+        }
+        // the array must be the only field, so a message with a field of the same name is not taken for a batch
+        int arrayEnd = value(i);
+        if (arrayEnd < 0 || ws(arrayEnd) != end) {
+            return null;
+        }
+        ChannelBuffer head = buffer.slice(buffer.readerIndex(), dataStart - buffer.readerIndex());
+        ChannelBuffer tail = buffer.slice(dataEnd, buffer.writerIndex() - dataEnd);
+        List<ChannelBuffer> frames = Lists.newArrayList();
+        i = ws(i + 1);
+        while (i < arrayEnd - 1) {
+            int stop = value(i);
+            if (stop <= i) {
+                return null;
+            }
+            frames.add(ChannelBuffers.wrappedBuffer(head.duplicate(), buffer.slice(i, stop - i), tail.duplicate()));
+            i = ws(stop);
+            if (i < arrayEnd - 1 && buffer.getByte(i) == ',') {
+                i = ws(i + 1);
+            }
+        }
+        return frames;
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString(CharsetUtil.UTF_8);
+    }
+
+    private synchronized void scan() {
+        if (scanned) {
+            return;
+        }
+        scanned = true;
+        int i = ws(buffer.readerIndex());
+        int end = buffer.writerIndex();
+        if (i >= end || buffer.getByte(i) != '{') {
+            return;
+        }
+        int data = field(i, "data");
+        if (data < 0 || buffer.getByte(data) != '{') {
+            return;
+        }
+        // the fields of the message
+        i = ws(data + 1);
+        while (i < end && buffer.getByte(i) == '"') {
+            int name = i + 1;
+            int nameEnd = string(i) - 1;
+            i = ws(nameEnd + 1);
+            if (i >= end || buffer.getByte(i) != ':') {
+                return;
+            }
+            int start = ws(i + 1);
+            int stop = value(start);
+            if (stop < 0) {
+                return;
+            }
+            if (equals(name, nameEnd, "topic") && buffer.getByte(start) == '"') {
+                topicStart = start + 1;
+                topicEnd = stop - 1;
+            } else if (equals(name, nameEnd, "timestamp")) {
+                timestampStart = start;
+                timestampEnd = stop;
+            } else if (equals(name, nameEnd, "data")) {
+                dataStart = start;
+                dataEnd = stop;
+            }
+            i = ws(stop);
+            if (i < end && buffer.getByte(i) == ',') {
+                i = ws(i + 1);
+            }
+        }
+    }
+
+    /**
+     * Find the value of a field of the object at a position.
+     *
+     * @return the start of the value, or -1
+     */
+    private int field(int i, String field) {
+        int end = buffer.writerIndex();
+        i = ws(i + 1);
+        while (i < end && buffer.getByte(i) == '"') {
+            int name = i + 1;
+            int nameEnd = string(i) - 1;
+            i = ws(nameEnd + 1);
+            if (i >= end || buffer.getByte(i) != ':') {
+                return -1;
+            }
+            int start = ws(i + 1);
+            if (equals(name, nameEnd, field)) {
+                return start;
+            }
+            i = value(start);
+            if (i < 0) {
+                return -1;
+            }
+            i = ws(i);
+            if (i < end && buffer.getByte(i) == ',') {
+                i = ws(i + 1);
+            }
+        }
+        return -1;
+    }
+
+    private int ws(int i) {
+        int end = buffer.writerIndex();
+        while (i < end) {
+            byte b = buffer.getByte(i);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skip a string at a position.
+     *
+     * @return the position after the closing quote
+     */
+    private int string(int i) {
+        int end = buffer.writerIndex();
+        for (i = i + 1; i < end; i++) {
+            byte b = buffer.getByte(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Skip a value at a position.
+     *
+     * @return the position after the value, or -1
+     */
+    private int value(int i) {
+        int end = buffer.writerIndex();
+        if (i >= end) {
+            return -1;
+        }
+        byte b = buffer.getByte(i);
+        if (b == '"') {
+            return string(i);
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (i < end) {
+                b = buffer.getByte(i);
+                if (b == '"') {
+                    i = string(i);
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+            return -1;
+        }
+        while (i < end) {
+            b = buffer.getByte(i);
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private boolean equals(int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer.getByte(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.getByte(i) == '\\') {
+                // an escaped topic, let the parser unescape it
+                try {
+                    XContentParser parser = JsonXContent.jsonXContent.createParser(
+                            new ChannelBufferInputStream(buffer.slice(start - 1, end - start + 2)));
+                    try {
+                        parser.nextToken();
+                        return parser.text();
+                    } finally {
+                        parser.close();
+                    }
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+        return buffer.toString(start, end - start, CharsetUtil.UTF_8);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.subscribe.SubscribeFilter;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * A subscribe filter compiled for evaluation on the raw bytes of received message frames.
+ *
+ * The frame is scanned token by token, and only the objects on the paths of the
+ * clauses are entered; everything else is skipped. The scan stops as soon as a
+ * clause fails, or all clauses are satisfied. Field names are compared with the
+ * names canonicalized by the parser, and values are compared on the characters of
+ * the parser, so a rejected message is never decoded into a String or a Map.
+ *
+ * The semantics are those of {@link SubscribeFilter}, with the paths of the clauses
+ * relative to the published message. Arrays of objects are not entered. Frames
+ * that do not carry a message, like responses, always match.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketMessageFilter {
+
+    private final Clause[] clauses;
+
+    // the bits of a scan with all clauses satisfied
+    private final long all;
+
+    private final int depth;
+
+    private WebSocketMessageFilter(SubscribeFilter filter) {
+        List<SubscribeFilter.Clause> list = filter.clauses();
+        if (list.size() > 64) {
+            throw new IllegalArgumentException("too many clauses: " + list.size());
+        }
+        this.clauses = new Clause[list.size()];
+        int max = 0;
+        for (int i = 0; i < clauses.length; i++) {
+            clauses[i] = new Clause(list.get(i));
+            max = Math.max(max, clauses[i].path.length);
+        }
+        this.all = clauses.length == 64 ? -1L : (1L << clauses.length) - 1L;
+        this.depth = max;
+    }
+
+    public static WebSocketMessageFilter compile(SubscribeFilter filter) {
+        return new WebSocketMessageFilter(filter);
+    }
+
+    public boolean matches(WebSocketFrame frame) {
+        return !(frame instanceof TextWebSocketFrame) || matches(frame.getBinaryData());
+    }
+
+    /**
+     * Evaluate the filter on the bytes of a frame. The indexes of the buffer are not changed.
+     */
+    public boolean matches(ChannelBuffer buffer) {
+        try {
+            XContentParser parser = JsonXContent.jsonXContent.createParser(new ChannelBufferInputStream(buffer.duplicate()));
+            try {
+                XContentParser.Token token = seek(parser);
+                if (token == null) {
+                    return true;
+                }
+                if (clauses.length == 0) {
+                    return true;
+                }
+                if (token != XContentParser.Token.START_OBJECT) {
+                    return false;
+                }
+                long[] satisfied = new long[1];
+                int result = scan(parser, new String[depth], 0, satisfied);
+                return result > 0 || (result == 0 && satisfied[0] == all);
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            // not JSON, can not be a message
+            return true;
+        }
+    }
+
+    /**
+     * A listener that receives only the messages that match this filter.
+     */
+    public <Response extends ActionResponse> WebSocketIngestActionListener<Response> listener(
+            final WebSocketIngestActionListener<Response> listener) {
+        return new WebSocketIngestActionListener<Response>() {
+            @Override
+            public void onConnect(WebSocketIngestClient client) throws IOException {
+                listener.onConnect(client);
+            }
+
+            @Override
+            public void onDisconnect(WebSocketIngestClient client) throws IOException {
+                listener.onDisconnect(client);
+            }
+
+            @Override
+            public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) throws IOException {
+                if (matches(frame)) {
+                    listener.onMessage(client, frame);
+                }
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    /**
+     * Move the parser to the value of the message in data.data.
+     *
+     * @return the first token of the message, or null if there is no message
+     */
+    private static XContentParser.Token seek(XContentParser parser) throws IOException {
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            return null;
+        }
+        for (int level = 0; level < 2; level++) {
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+                String name = parser.currentName();
+                token = parser.nextToken();
+                if ("data".equals(name)) {
+                    if (level == 1) {
+                        return token;
+                    }
+                    if (token != XContentParser.Token.START_OBJECT) {
+                        return null;
+                    }
+                    break;
+                }
+                parser.skipChildren();
+            }
+            if (token != XContentParser.Token.START_OBJECT) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Scan the fields of an object at a depth of the path.
+     *
+     * @return -1 if a clause failed, 1 if all clauses are satisfied, 0 to go on
+     */
+    private int scan(XContentParser parser, String[] path, int level, long[] satisfied) throws IOException {
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+            path[level] = parser.currentName();
+            token = parser.nextToken();
+            int result = 0;
+            if (token == XContentParser.Token.START_OBJECT) {
+                result = exists(path, level + 1, satisfied);
+                if (result == 0 && level + 1 < depth && prefix(path, level + 1)) {
+                    result = scan(parser, path, level + 1, satisfied);
+                } else {
+                    parser.skipChildren();
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                result = array(parser, path, level + 1, satisfied);
+            } else {
+                result = value(parser, token, path, level + 1, satisfied, true);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Scan the values of an array. A clause is satisfied if one of the values matches,
+     * and fails only if none does.
+     */
+    private int array(XContentParser parser, String[] path, int length, long[] satisfied) throws IOException {
+        long watched = 0L;
+        for (int i = 0; i < clauses.length; i++) {
+            if (clauses[i].on(path, length)) {
+                watched |= 1L << i;
+                if (clauses[i].op == SubscribeFilter.Op.EXISTS) {
+                    satisfied[0] |= 1L << i;
+                }
+            }
+        }
+        if (watched == 0L) {
+            parser.skipChildren();
+            return 0;
+        }
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+                parser.skipChildren();
+            } else {
+                value(parser, token, path, length, satisfied, false);
+            }
+        }
+        if ((satisfied[0] & watched) != watched) {
+            // the field occurs once, so an unsatisfied clause on it has failed
+            return -1;
+        }
+        return satisfied[0] == all ? 1 : 0;
+    }
+
+    private int exists(String[] path, int length, long[] satisfied) {
+        for (int i = 0; i < clauses.length; i++) {
+            if (clauses[i].on(path, length)) {
+                if (clauses[i].op != SubscribeFilter.Op.EXISTS) {
+                    return -1;
+                }
+                satisfied[0] |= 1L << i;
+            }
+        }
+        return satisfied[0] == all ? 1 : 0;
+    }
+
+    /**
+     * Evaluate the clauses on a scalar value.
+     *
+     * @param single true if the value is not in an array, so a failed clause fails the filter
+     */
+    private int value(XContentParser parser, XContentParser.Token token, String[] path, int length,
+                      long[] satisfied, boolean single) throws IOException {
+        for (int i = 0; i < clauses.length; i++) {
+            Clause clause = clauses[i];
+            if (!clause.on(path, length)) {
+                continue;
+            }
+            if (clause.matches(parser, token)) {
+                satisfied[0] |= 1L << i;
+            } else if (single) {
+                return -1;
+            }
+        }
+        return single && satisfied[0] == all ? 1 : 0;
+    }
+
+    private boolean prefix(String[] path, int length) {
+        for (Clause clause : clauses) {
+            if (clause.path.length > length && clause.startsWith(path, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class Clause {
+
+        final SubscribeFilter.Op op;
+
+        final String[] path;
+
+        final Bound from;
+
+        final Bound to;
+
+        Clause(SubscribeFilter.Clause clause) {
+            this.op = clause.op();
+            String[] names = clause.field().split("\\.");
+            this.path = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                // the parser canonicalizes field names as interned strings
+                path[i] = names[i].intern();
+            }
+            this.from = clause.from() != null ? new Bound(clause.from()) : null;
+            this.to = clause.to() != null ? new Bound(clause.to()) : null;
+        }
+
+        boolean on(String[] path, int length) {
+            return this.path.length == length && startsWith(path, length);
+        }
+
+        boolean startsWith(String[] path, int length) {
+            for (int i = 0; i < length; i++) {
+                if (!this.path[i].equals(path[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(XContentParser parser, XContentParser.Token token) throws IOException {
+            if (token == XContentParser.Token.VALUE_NULL) {
+                return false;
+            }
+            switch (op) {
+                case TERM:
+                    return from.compare(parser, token) == 0;
+                case RANGE:
+                    return (from == null || from.compare(parser, token) <= 0)
+                            && (to == null || to.compare(parser, token) >= 0);
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * A value of a clause, prepared for comparing with the current token.
+     */
+    static class Bound {
+
+        final boolean number;
+
+        final double value;
+
+        final char[] chars;
+
+        Bound(Object o) {
+            this.number = o instanceof Number;
+            this.value = number ? ((Number) o).doubleValue() : 0d;
+            this.chars = o.toString().toCharArray();
+        }
+
+        /**
+         * Compare this bound with the value of the current token.
+         */
+        int compare(XContentParser parser, XContentParser.Token token) throws IOException {
+            if (number && token == XContentParser.Token.VALUE_NUMBER) {
+                return Double.compare(value, parser.doubleValue());
+            }
+            char[] text = parser.textCharacters();
+            int offset = parser.textOffset();
+            int length = parser.textLength();
+            int n = Math.min(chars.length, length);
+            for (int i = 0; i < n; i++) {
+                char c = text[offset + i];
+                if (chars[i] != c) {
+                    return chars[i] - c;
+                }
+            }
+            return chars.length - length;
+        }
+    }
+}
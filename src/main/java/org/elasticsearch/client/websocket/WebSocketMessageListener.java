@@ -0,0 +1,38 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.IOException;
+
+/**
+ * Receives the messages of a client as views of the received bytes, instead of frames.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public interface WebSocketMessageListener {
+
+    /**
+     * Called when a message arrives from the server. The message is only a view
+     * of the received frame, nothing of it is decoded unless it is asked for.
+     *
+     * @param client the connected client
+     * @param message the message
+     */
+    void onMessage(WebSocketIngestClient client, WebSocketMessage message) throws IOException;
+}
@@ -0,0 +1,444 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Outbound frames of a connection, held in one lane per {@link WebSocketPriority}.
+ *
+ * Frames are only passed to the channel while it is writable, so the write buffer
+ * of the channel stays small and a frame of a higher priority never waits for more
+ * than the buffered bytes. The lanes are drained by weighted round robin, which lets
+ * control frames overtake bulk frames without starving the bulk lane.
+ *
+ * If a fragment size is set, text and binary frames with a larger payload are
+ * written as a sequence of continuation frames, each a slice of the payload.
+ * Messages from a {@link ChunkedSource} are always written this way, and each chunk
+ * is read from the source only when the channel is ready to take it.
+ * While a fragmented message is being written, only ping and pong frames may be
+ * written in between, as RFC 6455 does not allow to interleave data frames.
+ *
+ * A close frame is held apart from the lanes and written when all lanes are empty,
+ * because RFC 6455 does not allow any frame after it. Frames offered after a close
+ * frame fail.
+ *
+ * The lanes are lock-free queues, so any number of application threads can add
+ * frames without waiting for each other. Only one thread drains the queue at a time.
+ * A thread that finds the queue being drained returns at once and leaves its frames
+ * to the draining thread, so concurrent senders are combined into one drain instead
+ * of queueing up on a lock. The frames of a drain pass are gathered into one write
+ * to the channel by the {@link WebSocketGatheringHandler} of the pipeline, which
+ * takes one write request and at most one wake-up of the I/O thread per pass
+ * instead of one per frame.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketOutboundQueue {
+
+    private final static WebSocketPriority[] priorities = WebSocketPriority.values();
+
+    private final Queue<Entry>[] lanes;
+
+    private final int[] credits;
+
+    /**
+     * The chunk size for sources if no fragment size is set.
+     */
+    private final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The limits of the frames gathered into one write.
+     */
+    private final static int MAX_GATHERED_FRAMES = 64;
+
+    private final static int MAX_GATHERED_BYTES = 256 * 1024;
+
+    /**
+     * The number of full passes a thread drains before it hands over to the I/O thread.
+     */
+    private final static int MAX_PASSES = 4;
+
+    private final int fragmentSize;
+
+    // the number of drain requests not yet seen by the draining thread, 0 if no thread drains
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    private Entry current;
+
+    private final AtomicReference<Entry> close = new AtomicReference<Entry>();
+
+    private boolean closeWritten;
+
+    private volatile ChannelFuture lastWrite;
+
+    private int gatheredFrames;
+
+    private long gatheredBytes;
+
+    public WebSocketOutboundQueue() {
+        this(0);
+    }
+
+    /**
+     * @param fragmentSize the maximum payload size of a frame, or 0 for no fragmentation
+     */
+    @SuppressWarnings("unchecked")
+    public WebSocketOutboundQueue(int fragmentSize) {
+        this.fragmentSize = fragmentSize;
+        this.lanes = new Queue[priorities.length];
+        this.credits = new int[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            lanes[i] = new ConcurrentLinkedQueue<Entry>();
+        }
+        refill();
+    }
+
+    /**
+     * Add a frame to the lane of the given priority.
+     *
+     * @param frame the frame
+     * @param future the future to complete when the frame is written
+     * @param priority the priority
+     */
+    public void offer(WebSocketFrame frame, ChannelFuture future, WebSocketPriority priority) {
+        if (close.get() != null) {
+            future.setFailure(new WebSocketException("connection is closing"));
+            return;
+        }
+        lanes[priority.ordinal()].offer(new Entry(frame, null, future));
+    }
+
+    /**
+     * Add a close frame, to be written after all frames of all lanes.
+     *
+     * @param frame the close frame
+     * @param future the future to complete when the frame is written
+     */
+    public void offerClose(CloseWebSocketFrame frame, ChannelFuture future) {
+        if (!close.compareAndSet(null, new Entry(frame, null, future))) {
+            future.setFailure(new WebSocketException("connection is closing"));
+        }
+    }
+
+    /**
+     * Add a text message read from a chunked source to the lane of the given priority.
+     *
+     * @param source the source of the message payload
+     * @param future the future to complete when the message is written
+     * @param priority the priority
+     */
+    public void offer(ChunkedSource source, ChannelFuture future, WebSocketPriority priority) {
+        if (close.get() != null) {
+            close(source);
+            future.setFailure(new WebSocketException("connection is closing"));
+            return;
+        }
+        lanes[priority.ordinal()].offer(new Entry(null, source, future));
+    }
+
+    /**
+     * Write queued frames downstream of the given context while the channel is writable.
+     * If another thread is draining the queue, return at once; that thread writes the
+     * frames added before this call, too. A thread drains at most a number of passes;
+     * if there are still frames then, the drain continues on the I/O thread when the
+     * last write of the thread is complete, so no sender keeps writing the frames of
+     * others for long.
+     *
+     * @param ctx the context of the handler the frames are written from
+     */
+    public void drain(ChannelHandlerContext ctx) {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        drain(ctx, 1);
+    }
+
+    /**
+     * Drain as the only draining thread.
+     *
+     * @param requests the drain requests this thread answers
+     */
+    private void drain(final ChannelHandlerContext ctx, int requests) {
+        WebSocketGatheringHandler gatherer = ctx.getPipeline().get(WebSocketGatheringHandler.class);
+        int passes = 0;
+        while (true) {
+            while (drainPass(ctx, gatherer)) {
+                // the pass was full, there may be more
+                if (++passes >= MAX_PASSES) {
+                    ChannelFuture last = lastWrite;
+                    if (last != null && !last.isDone()) {
+                        // hand over, still as the only draining thread
+                        final int pending = requests;
+                        last.addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture future) throws Exception {
+                                drain(ctx, pending);
+                            }
+                        });
+                        return;
+                    }
+                }
+            }
+            requests = drainRequests.addAndGet(-requests);
+            if (requests == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write queued frames until the channel is not writable, the queue is empty, or the
+     * limits of a gathered write are reached.
+     *
+     * @return true if the limits were reached
+     */
+    private synchronized boolean drainPass(ChannelHandlerContext ctx, WebSocketGatheringHandler gatherer) {
+        // while connecting, the handler gathers the frames itself
+        boolean gather = gatherer != null && gatherer.gatherIfIdle();
+        gatheredFrames = 0;
+        gatheredBytes = 0L;
+        try {
+            while (ctx.getChannel().isWritable()) {
+                if (gatheredFrames >= MAX_GATHERED_FRAMES || gatheredBytes >= MAX_GATHERED_BYTES) {
+                    return true;
+                }
+                if (current != null) {
+                    Entry control = pollPingPong();
+                    if (control != null) {
+                        write(ctx, control.future, control.frame);
+                    } else {
+                        writeFragment(ctx);
+                    }
+                    continue;
+                }
+                Entry entry = poll();
+                if (entry == null) {
+                    Entry c = close.get();
+                    if (c != null && !closeWritten) {
+                        closeWritten = true;
+                        write(ctx, c.future, c.frame);
+                    }
+                    return false;
+                }
+                if (closeWritten) {
+                    // offered while the close frame was written
+                    if (entry.source != null) {
+                        close(entry.source);
+                    }
+                    entry.future.setFailure(new WebSocketException("connection is closing"));
+                    continue;
+                }
+                if (entry.source != null) {
+                    current = entry;
+                    writeFragment(ctx);
+                } else if (fragmentSize > 0 && isData(entry.frame)
+                        && entry.frame.getBinaryData().readableBytes() > fragmentSize) {
+                    entry.source = ChunkedSource.of(entry.frame.getBinaryData());
+                    current = entry;
+                    writeFragment(ctx);
+                } else {
+                    write(ctx, entry.future, entry.frame);
+                }
+            }
+            return false;
+        } finally {
+            if (gather) {
+                gatherer.flush(ctx);
+            }
+        }
+    }
+
+    private void write(ChannelHandlerContext ctx, ChannelFuture future, WebSocketFrame frame) {
+        lastWrite = future;
+        gatheredFrames++;
+        gatheredBytes += frame.getBinaryData().readableBytes();
+        Channels.write(ctx, future, frame);
+    }
+
+    private void writeFragment(ChannelHandlerContext ctx) {
+        final Entry entry = current;
+        int chunkSize = fragmentSize > 0 ? fragmentSize : DEFAULT_CHUNK_SIZE;
+        ChannelBuffer chunk;
+        boolean last;
+        try {
+            if (entry.next == null) {
+                entry.next = entry.source.next(chunkSize);
+            }
+            // the chunk is written below, before the source is read again, and the
+            // masking of the frame encoder copies it, so the source may reuse its buffer
+            chunk = entry.next;
+            entry.next = chunk != null ? entry.source.next(chunkSize) : null;
+            last = entry.next == null;
+            if (chunk == null) {
+                chunk = ChannelBuffers.EMPTY_BUFFER;
+            }
+        } catch (IOException e) {
+            // the message is incomplete, the connection can not be used any longer
+            current = null;
+            close(entry.source);
+            entry.future.setFailure(e);
+            ctx.getChannel().close();
+            return;
+        }
+        WebSocketFrame fragment;
+        if (entry.started) {
+            fragment = new ContinuationWebSocketFrame(last, 0, chunk);
+        } else if (entry.frame instanceof BinaryWebSocketFrame) {
+            fragment = new BinaryWebSocketFrame(last, 0, chunk);
+        } else {
+            fragment = new TextWebSocketFrame(last, 0, chunk);
+        }
+        entry.started = true;
+        if (last) {
+            current = null;
+            close(entry.source);
+            write(ctx, entry.future, fragment);
+        } else {
+            ChannelFuture future = Channels.future(ctx.getChannel());
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        entry.future.setFailure(future.getCause());
+                    }
+                }
+            });
+            write(ctx, future, fragment);
+        }
+    }
+
+    private static void close(ChunkedSource source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private Entry pollPingPong() {
+        Queue<Entry> lane = lanes[WebSocketPriority.CONTROL.ordinal()];
+        Entry entry = lane.peek();
+        if (entry != null && (entry.frame instanceof PingWebSocketFrame || entry.frame instanceof PongWebSocketFrame)) {
+            return lane.poll();
+        }
+        return null;
+    }
+
+    private static boolean isData(WebSocketFrame frame) {
+        return frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame;
+    }
+
+    /**
+     * Fail all queued frames, e.g. when the channel is closed.
+     *
+     * @param cause the cause
+     */
+    public synchronized void fail(Throwable cause) {
+        if (current != null) {
+            close(current.source);
+            current.future.setFailure(cause);
+            current = null;
+        }
+        // a new connection starts without a close frame
+        Entry c = close.getAndSet(null);
+        if (c != null && !closeWritten) {
+            c.future.setFailure(cause);
+        }
+        closeWritten = false;
+        for (Queue<Entry> lane : lanes) {
+            Entry entry;
+            while ((entry = lane.poll()) != null) {
+                if (entry.source != null) {
+                    close(entry.source);
+                }
+                entry.future.setFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * The number of queued frames.
+     */
+    public int size() {
+        int size = 0;
+        for (Queue<Entry> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    private Entry poll() {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (credits[i] > 0) {
+                    Entry entry = lanes[i].poll();
+                    if (entry != null) {
+                        credits[i]--;
+                        return entry;
+                    }
+                }
+            }
+            refill();
+        }
+        return null;
+    }
+
+    private void refill() {
+        for (int i = 0; i < priorities.length; i++) {
+            credits[i] = priorities[i].weight();
+        }
+    }
+
+    static class Entry {
+
+        final WebSocketFrame frame;
+
+        final ChannelFuture future;
+
+        ChunkedSource source;
+
+        ChannelBuffer next;
+
+        boolean started;
+
+        Entry(WebSocketFrame frame, ChunkedSource source, ChannelFuture future) {
+            this.frame = frame;
+            this.source = source;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+/**
+ * The outbound lanes of a websocket client, in the order of precedence.
+ *
+ * The weight is the number of frames a lane may write in one round
+ * of the scheduler before the lanes behind it get their turn.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public enum WebSocketPriority {
+
+    /**
+     * Heartbeats and subscribe requests. Close frames are always written last,
+     * after the frames of all lanes.
+     */
+    CONTROL(16),
+
+    /**
+     * Latency-sensitive messages like publish requests
+     */
+    INTERACTIVE(4),
+
+    /**
+     * Index, delete and flush requests. A flush must not overtake the requests before it.
+     */
+    BULK(1);
+
+    private final int weight;
+
+    private WebSocketPriority(int weight) {
+        this.weight = weight;
+    }
+
+    public int weight() {
+        return weight;
+    }
+}
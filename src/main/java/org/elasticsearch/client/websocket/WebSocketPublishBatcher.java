@@ -0,0 +1,288 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.action.publish.PublishAction;
+import org.elasticsearch.action.publish.PublishRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+
+/**
+ * Batches the messages published to the same topic into one publish request.
+ *
+ * The first message of a topic opens a batch, and the batch is sent when the window
+ * has passed since then, or as soon as its messages reach a number of bytes. A batch
+ * is published as one message whose data is an object with the single field
+ * {@link WebSocketMessage#BATCH}, the array of the messages, so it takes one frame
+ * and one dispatch on the server. Subscribing clients unpack a batch and pass the
+ * messages to their listeners one by one, each with the topic and timestamp of the
+ * batch. A batch of a single message is published as it is.
+ *
+ * Only JSON messages sent as JSON, see {@link PublishRequest#jsonMessage(boolean)},
+ * are batched. Other messages, and streamed messages, are sent at
+ * once, after the open batch of their topic, so the order of the messages of a topic
+ * is kept. Filters of subscriptions on the server see a batch, not its messages, so
+ * batched topics should be filtered by the subscribers, e.g. with a
+ * {@link WebSocketMessageFilter}. Subscribers unpack batches only if their factory
+ * is set up for it, see {@link WebSocketIngestClientFactory#unpackBatches(boolean)}.
+ *
+ * Completed batches are put into an outbox under the lock of the batcher, and sent
+ * by one thread at a time after the lock is released. A send that waits, e.g. for a
+ * memory budget, holds up neither the timer nor other threads adding messages.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketPublishBatcher {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketPublishBatcher.class.getName());
+
+    private final static byte[] BATCH_START = ("{\"" + WebSocketMessage.BATCH + "\":[").getBytes(Charsets.UTF_8);
+
+    private final static byte[] BATCH_END = "]}".getBytes(Charsets.UTF_8);
+
+    private final WebSocketIngestClient client;
+
+    private final Timer timer;
+
+    private final long window;
+
+    private final long maxBytes;
+
+    private final Map<String, Batch> batches = Maps.newHashMap();
+
+    private final AtomicLong messages = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    // the requests to send, in order
+    private final Queue<PublishRequest> outbox = new ConcurrentLinkedQueue<PublishRequest>();
+
+    // the number of send requests not yet seen by the sending thread, 0 if no thread sends
+    private final AtomicInteger sendRequests = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    /**
+     * @param client the client that publishes the batches
+     * @param timer the timer for the end of the windows
+     * @param window the time a batch is kept open
+     * @param maxBytes the size of the messages that sends a batch early
+     */
+    public WebSocketPublishBatcher(WebSocketIngestClient client, Timer timer, TimeValue window, ByteSizeValue maxBytes) {
+        if (window.millis() < 1L || maxBytes.bytes() < 1L) {
+            throw new IllegalArgumentException("invalid window: " + window + ", " + maxBytes);
+        }
+        this.client = client;
+        this.timer = timer;
+        this.window = window.millis();
+        this.maxBytes = maxBytes.bytes();
+    }
+
+    /**
+     * The number of messages added.
+     */
+    public long messages() {
+        return messages.get();
+    }
+
+    /**
+     * The number of publish requests sent, batches and single messages.
+     */
+    public long sent() {
+        return sent.get();
+    }
+
+    public WebSocketPublishBatcher add(PublishRequest request) {
+        // put into the outbox while holding the lock, so the requests of a topic leave in order
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("publish batcher is closed");
+            }
+            messages.incrementAndGet();
+            String topic = request.topic();
+            if (request.streamSource() != null || !request.jsonMessage() || !isJson(request.source())) {
+                complete(batches.remove(topic));
+                outbox.offer(request);
+            } else {
+                Batch batch = batches.get(topic);
+                if (batch == null) {
+                    batch = new Batch(topic);
+                    batches.put(topic, batch);
+                    schedule(batch);
+                }
+                batch.add(request);
+                if (batch.bytes >= maxBytes) {
+                    complete(batches.remove(topic));
+                }
+            }
+        }
+        send();
+        return this;
+    }
+
+    /**
+     * Send the open batches now.
+     */
+    public void flush() {
+        synchronized (this) {
+            for (Batch batch : batches.values()) {
+                complete(batch);
+            }
+            batches.clear();
+        }
+        send();
+    }
+
+    /**
+     * Send the open batches. Adding messages afterwards fails.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    private void schedule(final Batch batch) {
+        batch.timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                synchronized (WebSocketPublishBatcher.this) {
+                    // the batch may have been sent already, and a new one opened
+                    if (batches.get(batch.topic) != batch) {
+                        return;
+                    }
+                    complete(batches.remove(batch.topic));
+                }
+                send();
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Put the request of a batch into the outbox. Called while holding the lock.
+     */
+    private void complete(Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        if (batch.timeout != null) {
+            batch.timeout.cancel();
+        }
+        if (batch.count == 1) {
+            outbox.offer(batch.first);
+            return;
+        }
+        try {
+            batch.out.write(BATCH_END);
+        } catch (IOException e) {
+            // writes to memory do not fail
+        }
+        outbox.offer(publishRequest().topic(batch.topic).source(batch.out.bytes(), false).jsonMessage(true));
+    }
+
+    /**
+     * Send the requests of the outbox, unless another thread is sending them.
+     */
+    private void send() {
+        if (sendRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            PublishRequest request;
+            while ((request = outbox.poll()) != null) {
+                publish(request);
+            }
+            requests = sendRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void publish(PublishRequest request) {
+        try {
+            client.write(PublishAction.INSTANCE, request);
+            sent.incrementAndGet();
+        } catch (Exception e) {
+            logger.warn("invalid request {}: {}", request, e.getMessage());
+        }
+    }
+
+    private static boolean isJson(BytesReference bytes) {
+        return bytes != null && bytes.length() > 0 && XContentFactory.xContentType(bytes) == XContentType.JSON;
+    }
+
+    /**
+     * The open batch of a topic.
+     */
+    static class Batch {
+
+        final String topic;
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+
+        PublishRequest first;
+
+        int count;
+
+        long bytes;
+
+        Timeout timeout;
+
+        Batch(String topic) {
+            this.topic = topic;
+        }
+
+        void add(PublishRequest request) {
+            BytesReference source = request.source();
+            try {
+                if (count == 0) {
+                    first = request;
+                    out.write(BATCH_START);
+                } else {
+                    out.write(',');
+                }
+                source.writeTo(out);
+            } catch (IOException e) {
+                // writes to memory do not fail
+            }
+            count++;
+            bytes += source.length();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+/**
+ * A bounded pool of reusable objects.
+ *
+ * Objects are released when the frame that refers to them has been written,
+ * which happens on an I/O thread, and obtained again on application threads.
+ * The pool is therefore shared between threads instead of being thread-local.
+ * If the pool is empty, a new object is created, and if it is full, a released
+ * object is dropped.
+ *
+ * @param <T> the type of the objects
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketRecycler<T> {
+
+    /**
+     * Creates and resets the objects of a recycler.
+     */
+    public interface Factory<T> {
+
+        T create();
+
+        /**
+         * Reset an object for reuse.
+         *
+         * @return false if the object should not be reused, e.g. because it grew too large
+         */
+        boolean reset(T t);
+    }
+
+    private final Queue<T> pool = new ConcurrentLinkedQueue<T>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final int capacity;
+
+    private final Factory<T> factory;
+
+    /**
+     * @param capacity the maximum number of pooled objects
+     * @param factory the factory for new objects
+     */
+    public WebSocketRecycler(int capacity, Factory<T> factory) {
+        this.capacity = capacity;
+        this.factory = factory;
+    }
+
+    /**
+     * Take an object from the pool, or create a new one.
+     */
+    public T obtain() {
+        T t = pool.poll();
+        if (t == null) {
+            return factory.create();
+        }
+        size.decrementAndGet();
+        return t;
+    }
+
+    /**
+     * Return an object to the pool. The object must not be used afterwards.
+     */
+    public void release(T t) {
+        if (t == null || !factory.reset(t)) {
+            return;
+        }
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return;
+        }
+        pool.offer(t);
+    }
+
+    /**
+     * Return an object to the pool when a write is complete, or at once if there is no write.
+     */
+    public void releaseOnComplete(ChannelFuture future, final T t) {
+        if (future == null) {
+            release(t);
+            return;
+        }
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                release(t);
+            }
+        });
+    }
+
+    /**
+     * The number of pooled objects.
+     */
+    public int size() {
+        return size.get();
+    }
+}
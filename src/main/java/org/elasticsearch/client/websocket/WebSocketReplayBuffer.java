@@ -0,0 +1,309 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Keeps the recent messages of each topic received by a client, and replays
+ * them to local listeners that are added later, before the live messages.
+ *
+ * The messages of a topic are held in a ring of at most a number of messages
+ * that are not older than a maximum age. The buffers of the received frames are
+ * kept as they are, without a copy, and shared by all replays. The total size of
+ * the kept messages of all topics is capped; when the cap is reached, the oldest
+ * message of any topic is dropped first.
+ *
+ * Replays and live deliveries happen while the buffer is locked, so a listener
+ * sees every message exactly once and in order. Listeners should return quickly.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketReplayBuffer {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketReplayBuffer.class.getName());
+
+    /**
+     * Receives the messages of a topic.
+     */
+    public interface Listener {
+
+        void onMessage(String topic, WebSocketFrame frame);
+    }
+
+    private final int maxMessages;
+
+    private final long maxAge;
+
+    private final long maxBytes;
+
+    private final Map<String, Deque<Entry>> topics = Maps.newHashMap();
+
+    private final Map<String, List<Listener>> listeners = Maps.newHashMap();
+
+    // the entries of all topics in the order of arrival, linked through the entries,
+    // for evicting the oldest across topics
+    private Entry first;
+
+    private Entry last;
+
+    private int count;
+
+    private long bytes;
+
+    /**
+     * @param maxMessages the maximum number of messages kept per topic
+     * @param maxAge the maximum age of a kept message
+     * @param maxBytes the maximum size of all kept messages
+     */
+    public WebSocketReplayBuffer(int maxMessages, TimeValue maxAge, ByteSizeValue maxBytes) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be positive: " + maxMessages);
+        }
+        this.maxMessages = maxMessages;
+        this.maxAge = maxAge.millis();
+        this.maxBytes = maxBytes.bytes();
+    }
+
+    /**
+     * The size of all kept messages in bytes.
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * The number of kept messages of all topics.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * The number of kept messages of a topic.
+     */
+    public synchronized int size(String topic) {
+        expire(System.currentTimeMillis());
+        Deque<Entry> ring = topics.get(topic);
+        return ring != null ? ring.size() : 0;
+    }
+
+    /**
+     * Add a listener for a topic. The kept messages of the topic are replayed
+     * to the listener before this method returns.
+     */
+    public synchronized void addListener(String topic, Listener listener) {
+        expire(System.currentTimeMillis());
+        Deque<Entry> ring = topics.get(topic);
+        if (ring != null) {
+            for (Entry entry : ring) {
+                deliver(listener, topic, entry.buffer);
+            }
+        }
+        List<Listener> list = listeners.get(topic);
+        if (list == null) {
+            listeners.put(topic, list = Lists.newArrayList());
+        }
+        list.add(listener);
+    }
+
+    public synchronized void removeListener(String topic, Listener listener) {
+        List<Listener> list = listeners.get(topic);
+        if (list != null) {
+            list.remove(listener);
+        }
+    }
+
+    /**
+     * Called by the client handler for a received data frame.
+     */
+    void record(WebSocketFrame frame) {
+        if (!(frame instanceof TextWebSocketFrame)) {
+            return;
+        }
+        ChannelBuffer buffer = frame.getBinaryData();
+        String topic = topic(buffer);
+        if (topic == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = new Entry(topic, now, buffer);
+            Deque<Entry> ring = topics.get(topic);
+            if (ring == null) {
+                topics.put(topic, ring = new ArrayDeque<Entry>());
+            }
+            ring.addLast(entry);
+            link(entry);
+            bytes += entry.size;
+            if (ring.size() > maxMessages) {
+                remove(ring.peekFirst());
+            }
+            Entry oldest;
+            while (bytes > maxBytes && (oldest = oldest()) != null) {
+                remove(oldest);
+            }
+            expire(now);
+            List<Listener> list = listeners.get(topic);
+            if (list != null) {
+                for (Listener listener : list) {
+                    deliver(listener, topic, buffer);
+                }
+            }
+        }
+    }
+
+    private void deliver(Listener listener, String topic, ChannelBuffer buffer) {
+        try {
+            // a duplicate, so the indexes of the shared buffer never move
+            listener.onMessage(topic, new TextWebSocketFrame(buffer.duplicate()));
+        } catch (Exception e) {
+            logger.error("listener failed: {}", e, e.getMessage());
+        }
+    }
+
+    private void expire(long now) {
+        Entry oldest;
+        while ((oldest = oldest()) != null && now - oldest.time > maxAge) {
+            remove(oldest);
+        }
+    }
+
+    /**
+     * The oldest kept entry of all topics.
+     */
+    private Entry oldest() {
+        return first;
+    }
+
+    private void link(Entry entry) {
+        entry.prev = last;
+        if (last != null) {
+            last.next = entry;
+        } else {
+            first = entry;
+        }
+        last = entry;
+        count++;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            first = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        } else {
+            last = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        count--;
+    }
+
+    /**
+     * Remove an entry. It is always the oldest entry of its topic.
+     */
+    private void remove(Entry entry) {
+        Deque<Entry> ring = topics.get(entry.topic);
+        ring.pollFirst();
+        if (ring.isEmpty()) {
+            topics.remove(entry.topic);
+        }
+        bytes -= entry.size;
+        unlink(entry);
+        entry.buffer = null;
+    }
+
+    /**
+     * Find the topic of a message frame with a token scan, without building a map of the message.
+     */
+    static String topic(ChannelBuffer buffer) {
+        try {
+            XContentParser parser = JsonXContent.jsonXContent.createParser(new ChannelBufferInputStream(buffer.duplicate()));
+            try {
+                if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                    return null;
+                }
+                while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    String name = parser.currentName();
+                    XContentParser.Token token = parser.nextToken();
+                    if ("data".equals(name) && token == XContentParser.Token.START_OBJECT) {
+                        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                            String field = parser.currentName();
+                            token = parser.nextToken();
+                            if ("topic".equals(field) && token == XContentParser.Token.VALUE_STRING) {
+                                return parser.text();
+                            }
+                            parser.skipChildren();
+                        }
+                        return null;
+                    }
+                    parser.skipChildren();
+                }
+                return null;
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static class Entry {
+
+        final String topic;
+
+        final long time;
+
+        ChannelBuffer buffer;
+
+        final int size;
+
+        // the neighbours in the order of arrival of all topics
+        Entry prev;
+
+        Entry next;
+
+        Entry(String topic, long time, ChannelBuffer buffer) {
+            this.topic = topic;
+            this.time = time;
+            this.buffer = buffer;
+            this.size = buffer.readableBytes();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * A retry policy with exponential backoff: the delay before a retry doubles
+ * with each attempt, starting at the initial backoff, up to the maximum backoff.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class WebSocketRetryPolicy {
+
+    private final int maxRetries;
+
+    private final long initialBackoff;
+
+    private final long maxBackoff;
+
+    /**
+     * @param maxRetries the number of retries before a request is given up
+     * @param initialBackoff the delay before the first retry
+     * @param maxBackoff the maximum delay before a retry
+     */
+    public WebSocketRetryPolicy(int maxRetries, TimeValue initialBackoff, TimeValue maxBackoff) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative: " + maxRetries);
+        }
+        if (initialBackoff.millis() < 1L || maxBackoff.millis() < initialBackoff.millis()) {
+            throw new IllegalArgumentException("invalid backoff: " + initialBackoff + ", " + maxBackoff);
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff.millis();
+        this.maxBackoff = maxBackoff.millis();
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * The delay before a retry, in milliseconds.
+     *
+     * @param attempt the number of retries so far
+     */
+    public long backoff(int attempt) {
+        if (attempt >= 62) {
+            return maxBackoff;
+        }
+        long delay = initialBackoff << attempt;
+        return delay <= 0L || delay > maxBackoff ? maxBackoff : delay;
+    }
+
+    @Override
+    public String toString() {
+        return "[maxRetries=" + maxRetries + ",initialBackoff=" + initialBackoff + "ms,maxBackoff=" + maxBackoff + "ms]";
+    }
+}
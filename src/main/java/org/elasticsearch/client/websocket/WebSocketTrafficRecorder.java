@@ -0,0 +1,221 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Records the frames of websocket connections into a capture file.
+ *
+ * The recorder sits next to the frame codecs in the pipelines of the clients of a
+ * factory, and sees every frame as it goes over the wire, in both directions, including
+ * fragments and control frames. One recorder may be shared by many clients; the frames
+ * of all connections go into one file, told apart by the id of their channel.
+ *
+ * The capture file starts with a header of the magic number {@link #MAGIC} and the
+ * format version, followed by one record per frame:
+ * <pre>
+ *     byte   direction, {@link #OUTBOUND} or {@link #INBOUND}
+ *     int    connection id
+ *     long   System.nanoTime() when the frame passed the recorder
+ *     byte   opcode as in RFC 6455
+ *     byte   flags, bit 0 final fragment, bits 1-3 rsv
+ *     int    payload length
+ *     byte[] payload
+ * </pre>
+ * All numbers are big endian. Captures are read back by
+ * {@link org.elasticsearch.client.websocket.tools.TrafficReplayer}.
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+@ChannelHandler.Sharable
+public class WebSocketTrafficRecorder extends SimpleChannelHandler implements Closeable {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(WebSocketTrafficRecorder.class.getName());
+
+    public final static int MAGIC = 0x57534350;
+
+    public final static short VERSION = 1;
+
+    public final static byte OUTBOUND = 0;
+
+    public final static byte INBOUND = 1;
+
+    private final Path file;
+
+    private DataOutputStream out;
+
+    private long frames;
+
+    /**
+     * @param file the capture file, which is replaced if it exists
+     * @throws IOException if the file can not be created
+     */
+    public WebSocketTrafficRecorder(Path file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * The number of recorded frames.
+     */
+    public synchronized long frames() {
+        return frames;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof WebSocketFrame) {
+            record(INBOUND, e.getChannel().getId(), (WebSocketFrame) e.getMessage());
+        }
+        ctx.sendUpstream(e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof WebSocketFrame) {
+            record(OUTBOUND, e.getChannel().getId(), (WebSocketFrame) e.getMessage());
+        }
+        ctx.sendDownstream(e);
+    }
+
+    private void record(byte direction, int connection, WebSocketFrame frame) {
+        long now = System.nanoTime();
+        ChannelBuffer payload = frame.getBinaryData();
+        int length = payload.readableBytes();
+        synchronized (this) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(direction);
+                out.writeInt(connection);
+                out.writeLong(now);
+                out.writeByte(opcode(frame));
+                out.writeByte((frame.isFinalFragment() ? 1 : 0) | (frame.getRsv() & 7) << 1);
+                out.writeInt(length);
+                // the indexes of the payload are not moved
+                payload.getBytes(payload.readerIndex(), out, length);
+                frames++;
+            } catch (IOException e) {
+                // the traffic goes on, but the capture is no longer complete
+                logger.error("recording to {} failed, recording stopped: {}", e, file, e.getMessage());
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Flush the recorded frames to the capture file.
+     */
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Stop recording and close the capture file. Frames that pass the recorder
+     * afterwards are not recorded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // already failed
+        }
+    }
+
+    static byte opcode(WebSocketFrame frame) {
+        if (frame instanceof ContinuationWebSocketFrame) {
+            return 0x0;
+        } else if (frame instanceof TextWebSocketFrame) {
+            return 0x1;
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return 0x2;
+        } else if (frame instanceof CloseWebSocketFrame) {
+            return 0x8;
+        } else if (frame instanceof PingWebSocketFrame) {
+            return 0x9;
+        } else if (frame instanceof PongWebSocketFrame) {
+            return 0xA;
+        }
+        throw new IllegalArgumentException("unknown frame: " + frame.getClass().getName());
+    }
+
+    /**
+     * Create a frame from a recorded opcode, flags and payload.
+     */
+    public static WebSocketFrame frame(int opcode, int flags, ChannelBuffer payload) {
+        boolean last = (flags & 1) != 0;
+        int rsv = (flags >> 1) & 7;
+        switch (opcode) {
+            case 0x0:
+                return new ContinuationWebSocketFrame(last, rsv, payload);
+            case 0x1:
+                return new TextWebSocketFrame(last, rsv, payload);
+            case 0x2:
+                return new BinaryWebSocketFrame(last, rsv, payload);
+            case 0x8:
+                return new CloseWebSocketFrame(last, rsv, payload);
+            case 0x9:
+                return new PingWebSocketFrame(last, rsv, payload);
+            case 0xA:
+                return new PongWebSocketFrame(last, rsv, payload);
+            default:
+                throw new IllegalArgumentException("unknown opcode: " + opcode);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket.tools;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.action.flush.FlushAction;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.websocket.WebSocketException;
+import org.elasticsearch.client.websocket.WebSocketIngestActionListener;
+import org.elasticsearch.client.websocket.WebSocketIngestClient;
+import org.elasticsearch.client.websocket.WebSocketIngestClientFactory;
+import org.elasticsearch.client.websocket.WebSocketPriority;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.flushRequest;
+
+/**
+ * Loads a file of JSON documents, one document per line, over websocket connections.
+ *
+ * The file is split at line boundaries into one byte range per connection, and
+ * each range is mapped into memory window by window and sent by its own client.
+ * The number of requests per connection that are sent but not yet written to the
+ * socket is bounded. Progress is printed every second, and the byte offset of the
+ * last written document of each range is saved to a checkpoint file, so an
+ * interrupted load can be resumed. The checkpoint file is removed when the load
+ * completes.
+ *
+ * Usage:
+ * <pre>
+ *     java org.elasticsearch.client.websocket.tools.BulkLoader --url ws://localhost:9400/websocket
+ *         --index test --type test [--connections 4] [--window 1000] [--checkpoint file] file.json
+ * </pre>
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class BulkLoader {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(BulkLoader.class.getName());
+
+    /**
+     * The size of the regions of the file that are mapped at once. A line must fit into a region.
+     */
+    private final static long MAP_WINDOW = 64L * 1024L * 1024L;
+
+    private URI uri;
+
+    private String index;
+
+    private String type;
+
+    private int connections = 4;
+
+    private int window = 1000;
+
+    private Path input;
+
+    private Path checkpoint;
+
+    private PrintStream out = System.out;
+
+    private final AtomicLong docs = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    public BulkLoader uri(URI uri) {
+        this.uri = uri;
+        return this;
+    }
+
+    public BulkLoader index(String index) {
+        this.index = index;
+        return this;
+    }
+
+    public BulkLoader type(String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * The number of parallel connections, one per byte range of the file.
+     */
+    public BulkLoader connections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be positive: " + connections);
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * The maximum number of requests per connection sent but not yet written to the socket.
+     */
+    public BulkLoader window(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.window = window;
+        return this;
+    }
+
+    public BulkLoader input(Path input) {
+        this.input = input;
+        return this;
+    }
+
+    /**
+     * The checkpoint file. Defaults to the input file name with the suffix ".checkpoint".
+     */
+    public BulkLoader checkpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * Where progress is printed to, or null for no progress output.
+     */
+    public BulkLoader progress(PrintStream out) {
+        this.out = out;
+        return this;
+    }
+
+    /**
+     * The number of documents written so far.
+     */
+    public long docs() {
+        return docs.get();
+    }
+
+    /**
+     * The number of document bytes written so far.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Load the file.
+     *
+     * @throws Exception if a connection fails. The checkpoint is kept for resuming.
+     */
+    public void run() throws Exception {
+        if (uri == null || index == null || type == null || input == null) {
+            throw new IllegalArgumentException("url, index, type and input file are required");
+        }
+        if (checkpoint == null) {
+            checkpoint = input.resolveSibling(input.getFileName() + ".checkpoint");
+        }
+        List<Range> ranges;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            ranges = split(channel, connections);
+        }
+        resume(ranges);
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        final CountDownLatch done = new CountDownLatch(ranges.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            for (final Range range : ranges) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            load(factory, range);
+                        } catch (Throwable t) {
+                            logger.error("loading range {} failed: {}", t, range, t.getMessage());
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "bulkloader-" + range.start);
+                thread.start();
+            }
+            long t0 = System.nanoTime();
+            long lastTime = t0;
+            long lastDocs = 0L;
+            long lastBytes = 0L;
+            while (!done.await(1, TimeUnit.SECONDS)) {
+                long now = System.nanoTime();
+                long d = docs.get();
+                long b = bytes.get();
+                report(now - lastTime, d - lastDocs, b - lastBytes, ranges);
+                lastTime = now;
+                lastDocs = d;
+                lastBytes = b;
+                save(ranges);
+            }
+            report(System.nanoTime() - t0, docs.get(), bytes.get(), ranges);
+        } finally {
+            factory.shutdown();
+        }
+        if (failure.get() != null) {
+            save(ranges);
+            throw new WebSocketException("load incomplete, resume from " + checkpoint, failure.get());
+        }
+        Files.deleteIfExists(checkpoint);
+    }
+
+    /**
+     * Send the lines of a range with a client of its own.
+     */
+    private void load(WebSocketIngestClientFactory factory, final Range range) throws Exception {
+        if (range.offset() >= range.end) {
+            return;
+        }
+        final CountDownLatch connected = new CountDownLatch(1);
+        WebSocketIngestClient client = factory.newIngestClient(uri, new WebSocketIngestActionListener.Adapter() {
+            @Override
+            public void onConnect(WebSocketIngestClient client) {
+                connected.countDown();
+            }
+        });
+        client.connect();
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            client.disconnect();
+            throw new WebSocketException("no connection to " + uri);
+        }
+        final Semaphore inflight = new Semaphore(window);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long position = range.offset();
+            while (position < range.end && failure.get() == null) {
+                long length = Math.min(MAP_WINDOW, range.end - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int lineStart = 0;
+                for (int i = 0; i < buffer.limit() && failure.get() == null; i++) {
+                    if (buffer.get(i) != '\n') {
+                        continue;
+                    }
+                    send(client, range, buffer, lineStart, i, position + i + 1, inflight, failure);
+                    lineStart = i + 1;
+                }
+                if (position + length == range.end && lineStart < buffer.limit()) {
+                    // last line of the file without line feed
+                    send(client, range, buffer, lineStart, buffer.limit(), range.end, inflight, failure);
+                    lineStart = buffer.limit();
+                }
+                if (lineStart == 0 && failure.get() == null) {
+                    throw new IOException("line at offset " + position + " exceeds " + MAP_WINDOW + " bytes");
+                }
+                // continue with the line that crosses the end of the window
+                position += lineStart;
+            }
+            inflight.acquire(window);
+            if (failure.get() != null) {
+                throw new WebSocketException("write failed", failure.get());
+            }
+            client.write(FlushAction.INSTANCE, flushRequest()).awaitUninterruptibly();
+            client.send(new CloseWebSocketFrame(), WebSocketPriority.BULK).awaitUninterruptibly();
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private void send(WebSocketIngestClient client, final Range range, ByteBuffer buffer, int from, int to,
+            final long next, final Semaphore inflight, final AtomicReference<Throwable> failure) throws Exception {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return;
+        }
+        final byte[] b = new byte[to - from];
+        ByteBuffer line = buffer.duplicate();
+        line.position(from);
+        line.get(b);
+        IndexRequest request = new IndexRequest(index).type(type).source(b);
+        inflight.acquire();
+        client.write(IndexAction.INSTANCE, request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    // frames of a connection are written in order, so this is the new resume offset
+                    range.written(next);
+                    docs.incrementAndGet();
+                    bytes.addAndGet(b.length);
+                } else {
+                    failure.compareAndSet(null, future.getCause());
+                }
+                inflight.release();
+            }
+        });
+    }
+
+    /**
+     * Split the file into ranges that start at line boundaries.
+     */
+    private List<Range> split(FileChannel channel, int n) throws IOException {
+        long size = channel.size();
+        List<Range> ranges = Lists.newArrayList();
+        long start = 0L;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (int i = 1; i <= n; i++) {
+            long end = i == n ? size : Math.max(start, size * i / n);
+            // move the end behind the next line feed
+            while (end < size && i < n) {
+                buffer.clear();
+                int len = channel.read(buffer, end);
+                if (len < 0) {
+                    end = size;
+                    break;
+                }
+                int j = 0;
+                while (j < len && buffer.get(j) != '\n') {
+                    j++;
+                }
+                end += j;
+                if (j < len) {
+                    end++;
+                    break;
+                }
+            }
+            ranges.add(new Range(start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+    /**
+     * Continue from the checkpoint if it was written for the same split of the file.
+     */
+    private void resume(List<Range> ranges) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(checkpoint, Charsets.UTF_8);
+        if (lines.size() != ranges.size()) {
+            logger.warn("ignoring checkpoint {}, it was written for {} connections", checkpoint, lines.size());
+            return;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            String[] s = lines.get(i).trim().split("\\s+");
+            Range range = ranges.get(i);
+            if (s.length != 3 || Long.parseLong(s[0]) != range.start || Long.parseLong(s[1]) != range.end) {
+                logger.warn("ignoring checkpoint {}, the ranges do not match", checkpoint);
+                return;
+            }
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            ranges.get(i).written(Long.parseLong(lines.get(i).trim().split("\\s+")[2]));
+        }
+        logger.info("resuming from checkpoint {}", checkpoint);
+    }
+
+    /**
+     * Write the checkpoint to a temporary file and move it over the old one.
+     */
+    private void save(List<Range> ranges) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Range range : ranges) {
+            sb.append(range.start).append(' ').append(range.end).append(' ').append(range.offset()).append('\n');
+        }
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(Charsets.UTF_8));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void report(long nanos, long d, long b, List<Range> ranges) {
+        if (out == null) {
+            return;
+        }
+        long total = 0L;
+        long done = 0L;
+        for (Range range : ranges) {
+            total += range.end - range.start;
+            done += range.offset() - range.start;
+        }
+        double seconds = Math.max(nanos, 1L) / 1.0e9d;
+        out.printf("%d docs, %.1f%% | %.0f docs/sec, %.2f MB/sec%n",
+                docs.get(),
+                total > 0L ? 100.0d * done / total : 100.0d,
+                d / seconds,
+                b / seconds / (1024.0d * 1024.0d));
+    }
+
+    /**
+     * A byte range of the file, with the offset behind the last written line.
+     */
+    static class Range {
+
+        final long start;
+
+        final long end;
+
+        private final AtomicLong offset;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.offset = new AtomicLong(start);
+        }
+
+        long offset() {
+            return offset.get();
+        }
+
+        void written(long next) {
+            long current;
+            do {
+                current = offset.get();
+                if (next <= current) {
+                    return;
+                }
+            } while (!offset.compareAndSet(current, next));
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + "," + end + ")";
+        }
+    }
+
+    public static void main(String[] args) {
+        BulkLoader loader = new BulkLoader();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--url".equals(arg)) {
+                    loader.uri(new URI(args[++i]));
+                } else if ("--index".equals(arg)) {
+                    loader.index(args[++i]);
+                } else if ("--type".equals(arg)) {
+                    loader.type(args[++i]);
+                } else if ("--connections".equals(arg)) {
+                    loader.connections(Integer.parseInt(args[++i]));
+                } else if ("--window".equals(arg)) {
+                    loader.window(Integer.parseInt(args[++i]));
+                } else if ("--checkpoint".equals(arg)) {
+                    loader.checkpoint(Paths.get(args[++i]));
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("unknown option: " + arg);
+                } else {
+                    loader.input(Paths.get(arg));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: BulkLoader --url ws://host:port/websocket --index index --type type"
+                    + " [--connections n] [--window n] [--checkpoint file] file");
+            System.exit(2);
+        }
+        try {
+            loader.run();
+            System.exit(0);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.elasticsearch.client.websocket.WebSocketException;
+import org.elasticsearch.client.websocket.WebSocketIngestActionListener;
+import org.elasticsearch.client.websocket.WebSocketIngestClient;
+import org.elasticsearch.client.websocket.WebSocketIngestClientFactory;
+import org.elasticsearch.client.websocket.WebSocketTrafficRecorder;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Replays a capture of a {@link WebSocketTrafficRecorder} against a server.
+ *
+ * Every recorded connection is replayed by a client of its own. The outgoing data
+ * frames are sent at the times they were recorded, relative to the first frame of the
+ * capture and divided by the speed, or as fast as possible. Control frames are left
+ * out, the clients of the replay have their own heartbeat. The incoming messages of
+ * each connection are compared with the recorded ones, in order, and the difference
+ * between the time a message arrives and the time it arrived in the capture is
+ * reported as its latency delta. A positive delta means the message arrived later
+ * than in the capture.
+ *
+ * Usage:
+ * <pre>
+ *     java org.elasticsearch.client.websocket.tools.TrafficReplayer --url ws://localhost:9400/websocket
+ *         [--speed 1|n|max] [--timeout seconds] capture.bin
+ * </pre>
+ *
+ * @author Jörg Prante <joergprante@gmail.com>
+ */
+public class TrafficReplayer {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(TrafficReplayer.class.getName());
+
+    private URI uri;
+
+    private Path input;
+
+    private double speed = 1.0d;
+
+    private long timeout = 5000L;
+
+    private PrintStream out = System.out;
+
+    public TrafficReplayer uri(URI uri) {
+        this.uri = uri;
+        return this;
+    }
+
+    public TrafficReplayer input(Path input) {
+        this.input = input;
+        return this;
+    }
+
+    /**
+     * The speed of the replay, 1.0 for the recorded speed, n for n times faster,
+     * or 0 for as fast as possible. Latency deltas are only reported for timed replays.
+     */
+    public TrafficReplayer speed(double speed) {
+        if (speed < 0.0d) {
+            throw new IllegalArgumentException("speed must not be negative: " + speed);
+        }
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * How long to wait for outstanding incoming messages after the last frame was sent.
+     */
+    public TrafficReplayer timeout(TimeValue timeout) {
+        this.timeout = timeout.millis();
+        return this;
+    }
+
+    /**
+     * Where the report is printed to, or null for no output.
+     */
+    public TrafficReplayer progress(PrintStream out) {
+        this.out = out;
+        return this;
+    }
+
+    /**
+     * Replay the capture.
+     *
+     * @return the report of the replay
+     * @throws Exception if the capture can not be read or a connection fails
+     */
+    public Report run() throws Exception {
+        if (uri == null || input == null) {
+            throw new IllegalArgumentException("url and input file are required");
+        }
+        // the first pass finds the connections and the recorded arrival times of their messages
+        Map<Integer, Connection> connections = Maps.newLinkedHashMap();
+        long start = -1L;
+        try (DataInputStream in = open()) {
+            Record record;
+            while ((record = Record.read(in, false)) != null) {
+                if (start < 0L) {
+                    start = record.nanos;
+                }
+                Connection connection = connections.get(record.connection);
+                if (connection == null) {
+                    connections.put(record.connection, connection = new Connection());
+                }
+                if (record.direction == WebSocketTrafficRecorder.INBOUND && record.isMessageEnd()) {
+                    connection.recorded.add(record.nanos - start);
+                }
+            }
+        }
+        Report report = new Report(connections.size());
+        if (connections.isEmpty()) {
+            return report;
+        }
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .heartbeat(null, 1);
+        try {
+            connect(factory, connections);
+            long replayStart = System.nanoTime();
+            try (DataInputStream in = open()) {
+                Record record;
+                while ((record = Record.read(in, true)) != null) {
+                    if (record.direction != WebSocketTrafficRecorder.OUTBOUND || !record.isData()) {
+                        continue;
+                    }
+                    long lag = 0L;
+                    if (speed > 0.0d) {
+                        long due = replayStart + (long) ((record.nanos - start) / speed);
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0L) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        lag = System.nanoTime() - due;
+                    }
+                    WebSocketFrame frame = WebSocketTrafficRecorder.frame(record.opcode, record.flags,
+                            ChannelBuffers.wrappedBuffer(record.payload));
+                    connections.get(record.connection).client.send(frame);
+                    report.sent(lag);
+                }
+            }
+            await(connections.values());
+            report.elapsed = System.nanoTime() - replayStart;
+            for (Connection connection : connections.values()) {
+                report.received(connection, replayStart, speed);
+                connection.client.disconnect();
+            }
+        } finally {
+            factory.shutdown();
+        }
+        if (out != null) {
+            out.println(report);
+        }
+        return report;
+    }
+
+    private DataInputStream open() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(input), 64 * 1024));
+        if (in.readInt() != WebSocketTrafficRecorder.MAGIC) {
+            in.close();
+            throw new IOException("not a traffic capture: " + input);
+        }
+        short version = in.readShort();
+        if (version != WebSocketTrafficRecorder.VERSION) {
+            in.close();
+            throw new IOException("unsupported capture version " + version + ": " + input);
+        }
+        return in;
+    }
+
+    private void connect(WebSocketIngestClientFactory factory, Map<Integer, Connection> connections)
+            throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(connections.size());
+        for (final Connection connection : connections.values()) {
+            connection.client = factory.newIngestClient(uri, new WebSocketIngestActionListener.Adapter() {
+                @Override
+                public void onConnect(WebSocketIngestClient client) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) {
+                    connection.arrived(System.nanoTime());
+                }
+            });
+            connection.client.connect();
+        }
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            for (Connection connection : connections.values()) {
+                connection.client.disconnect();
+            }
+            throw new WebSocketException("no connection to " + uri);
+        }
+    }
+
+    /**
+     * Wait until all frames are written and all recorded messages have arrived, or
+     * until no message arrived for the timeout.
+     */
+    private void await(Iterable<Connection> connections) throws InterruptedException {
+        long last = System.nanoTime();
+        int arrivals = -1;
+        while (true) {
+            boolean done = true;
+            int n = 0;
+            for (Connection connection : connections) {
+                n += connection.arrivals();
+                done &= connection.client.pendingWrites() == 0
+                        && connection.arrivals() >= connection.recorded.size();
+            }
+            if (done) {
+                return;
+            }
+            if (n != arrivals) {
+                arrivals = n;
+                last = System.nanoTime();
+            } else if (System.nanoTime() - last > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                logger.warn("messages missing after {} ms without arrivals", timeout);
+                return;
+            }
+            Thread.sleep(10L);
+        }
+    }
+
+    public static void main(String[] args) {
+        TrafficReplayer replayer = new TrafficReplayer();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--url".equals(arg)) {
+                    replayer.uri(new URI(args[++i]));
+                } else if ("--speed".equals(arg)) {
+                    String s = args[++i];
+                    replayer.speed("max".equals(s) ? 0.0d : Double.parseDouble(s));
+                } else if ("--timeout".equals(arg)) {
+                    replayer.timeout(TimeValue.timeValueSeconds(Long.parseLong(args[++i])));
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("unknown option: " + arg);
+                } else {
+                    replayer.input(Paths.get(arg));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: TrafficReplayer --url ws://host:port/websocket [--speed 1|n|max]"
+                    + " [--timeout seconds] file");
+            System.exit(2);
+        }
+        try {
+            replayer.run();
+            System.exit(0);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The result of a replay. Times are in nanoseconds.
+     */
+    public static class Report {
+
+        private final int connections;
+
+        private long sent;
+
+        private long maxLag;
+
+        private long totalLag;
+
+        private long expected;
+
+        private long received;
+
+        private long elapsed;
+
+        private final List<Long> deltas = Lists.newArrayList();
+
+        private long[] sorted;
+
+        Report(int connections) {
+            this.connections = connections;
+        }
+
+        void sent(long lag) {
+            sent++;
+            totalLag += lag;
+            maxLag = Math.max(maxLag, lag);
+        }
+
+        void received(Connection connection, long replayStart, double speed) {
+            List<Long> arrivals = connection.arrivalList();
+            expected += connection.recorded.size();
+            received += arrivals.size();
+            if (speed > 0.0d) {
+                int n = Math.min(arrivals.size(), connection.recorded.size());
+                for (int i = 0; i < n; i++) {
+                    long replayed = arrivals.get(i) - replayStart;
+                    deltas.add(replayed - (long) (connection.recorded.get(i) / speed));
+                }
+            }
+            sorted = null;
+        }
+
+        public int connections() {
+            return connections;
+        }
+
+        /**
+         * The number of frames sent.
+         */
+        public long sent() {
+            return sent;
+        }
+
+        /**
+         * The largest delay of a frame behind its scheduled time, a measure of how well
+         * the replay itself kept up with the capture.
+         */
+        public long maxLag() {
+            return maxLag;
+        }
+
+        /**
+         * The number of messages received in the capture.
+         */
+        public long expected() {
+            return expected;
+        }
+
+        /**
+         * The number of messages received in the replay.
+         */
+        public long received() {
+            return received;
+        }
+
+        /**
+         * The time from the start of the replay until the last message arrived or the timeout.
+         */
+        public long elapsed() {
+            return elapsed;
+        }
+
+        /**
+         * The latency deltas of the messages, in ascending order.
+         */
+        public long[] deltas() {
+            if (sorted == null) {
+                sorted = new long[deltas.size()];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = deltas.get(i);
+                }
+                Arrays.sort(sorted);
+            }
+            return sorted;
+        }
+
+        /**
+         * A percentile of the latency deltas, or 0 if there are none.
+         *
+         * @param p the percentile between 0 and 100
+         */
+        public long delta(double p) {
+            long[] d = deltas();
+            if (d.length == 0) {
+                return 0L;
+            }
+            int i = (int) Math.ceil(p / 100.0d * d.length) - 1;
+            return d[Math.max(0, Math.min(d.length - 1, i))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d connections, %d frames sent in %.1f ms, max lag %.3f ms, mean lag %.3f ms%n",
+                    connections, sent, elapsed / 1.0e6d, maxLag / 1.0e6d, sent > 0L ? totalLag / 1.0e6d / sent : 0.0d));
+            sb.append(String.format("%d of %d messages received", received, expected));
+            if (deltas().length > 0) {
+                sb.append(String.format("%nlatency delta ms: min %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f",
+                        delta(0.0d) / 1.0e6d, delta(50.0d) / 1.0e6d, delta(90.0d) / 1.0e6d,
+                        delta(99.0d) / 1.0e6d, delta(100.0d) / 1.0e6d));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A recorded connection and the client that replays it.
+     */
+    static class Connection {
+
+        // the recorded arrival times of the messages, relative to the start of the capture
+        final List<Long> recorded = Lists.newArrayList();
+
+        private final List<Long> arrivals = Lists.newArrayList();
+
+        WebSocketIngestClient client;
+
+        synchronized void arrived(long nanos) {
+            arrivals.add(nanos);
+        }
+
+        synchronized int arrivals() {
+            return arrivals.size();
+        }
+
+        synchronized List<Long> arrivalList() {
+            return Lists.newArrayList(arrivals);
+        }
+    }
+
+    /**
+     * A frame of a capture.
+     */
+    static class Record {
+
+        byte direction;
+
+        int connection;
+
+        long nanos;
+
+        int opcode;
+
+        int flags;
+
+        byte[] payload;
+
+        /**
+         * Read the next record.
+         *
+         * @param withPayload false to skip the payload
+         * @return the record, or null at the end of the capture
+         */
+        static Record read(DataInputStream in, boolean withPayload) throws IOException {
+            Record record = new Record();
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            try {
+                record.direction = (byte) b;
+                record.connection = in.readInt();
+                record.nanos = in.readLong();
+                record.opcode = in.readUnsignedByte();
+                record.flags = in.readUnsignedByte();
+                int length = in.readInt();
+                if (withPayload) {
+                    record.payload = new byte[length];
+                    in.readFully(record.payload);
+                } else {
+                    skip(in, length);
+                }
+            } catch (EOFException e) {
+                // a capture whose recorder was not closed ends with a partial record
+                logger.warn("capture ends with a truncated record");
+                return null;
+            }
+            return record;
+        }
+
+        private static void skip(DataInputStream in, int length) throws IOException {
+            while (length > 0) {
+                int n = in.skipBytes(length);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                length -= n;
+            }
+        }
+
+        boolean isData() {
+            return opcode <= 0x2;
+        }
+
+        /**
+         * If this frame completes a text or binary message.
+         */
+        boolean isMessageEnd() {
+            return isData() && (flags & 1) != 0;
+        }
+    }
+}
@@ -26,13 +26,14 @@ import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.support.WebSocketAction;
 import org.elasticsearch.client.websocket.WebSocketClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.jboss.netty.channel.ChannelFuture;
 
 public class WebSocketDeleteAction extends WebSocketAction<DeleteRequest,DeleteResponse> {
 
     public static final String NAME = "delete";
     
     @Override
-    protected void doExecute(WebSocketClient client, DeleteRequest request, ActionListener<DeleteResponse> listener) {
+    protected ChannelFuture doExecute(WebSocketClient client, DeleteRequest request, ActionListener<DeleteResponse> listener) {
         try {
             XContentBuilder builder = 
                 builder()
@@ -41,9 +42,9 @@ public class WebSocketDeleteAction extends WebSocketAction<DeleteRequest,DeleteR
                 .field("type", request.type())
                 .field("id", request.id())
                 .endObject();
-            responseOK(client, NAME, builder);
+            return responseOK(client, NAME, builder);
         } catch (IOException e) {
-            responseError(client, NAME, e);            
+            return responseError(client, NAME, e);            
         }
     }
     
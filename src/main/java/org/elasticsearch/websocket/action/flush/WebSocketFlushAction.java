@@ -24,17 +24,18 @@ import org.elasticsearch.action.flush.FlushRequest;
 import org.elasticsearch.action.flush.FlushResponse;
 import org.elasticsearch.action.support.WebSocketAction;
 import org.elasticsearch.client.websocket.WebSocketClient;
+import org.jboss.netty.channel.ChannelFuture;
 
 public class WebSocketFlushAction extends WebSocketAction<FlushRequest,FlushResponse> {
 
     public static final String NAME = "flush";
     
     @Override
-    protected void doExecute(WebSocketClient client, FlushRequest request, ActionListener<FlushResponse> listener) {
+    protected ChannelFuture doExecute(WebSocketClient client, FlushRequest request, ActionListener<FlushResponse> listener) {
         try {
-            responseOK(client, NAME, null);
+            return responseOK(client, NAME, null);
         } catch (Exception e) {
-            responseError(client, NAME, e);            
+            return responseError(client, NAME, e);            
         }
     }
     
@@ -26,25 +26,29 @@ import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.support.WebSocketAction;
 import org.elasticsearch.client.websocket.WebSocketClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.jboss.netty.channel.ChannelFuture;
 
 public class WebSocketIndexAction extends WebSocketAction<IndexRequest,IndexResponse> {
 
     public static final String NAME = "index";
     
     @Override
-    protected void doExecute(WebSocketClient client, IndexRequest request, ActionListener<IndexResponse> listener) {
+    protected ChannelFuture doExecute(WebSocketClient client, IndexRequest request, ActionListener<IndexResponse> listener) {
         try {
             XContentBuilder builder = 
                 builder()
                 .startObject()
                 .field("index", request.index())
                 .field("type", request.type())
-                .field("id", request.id())
-                .rawField("data", request.source())
+                .field("id", request.id());
+            if (isJson(request.source())) {
+                return responseOK(client, NAME, builder.endObject(), "data", request.source());
+            }
+            builder.rawField("data", request.source())
                 .endObject();
-            responseOK(client, NAME, builder);
+            return responseOK(client, NAME, builder);
         } catch (IOException e) {
-            responseError(client, NAME, e);            
+            return responseError(client, NAME, e);            
         }
     }
     
@@ -24,25 +24,45 @@ import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.publish.PublishRequest;
 import org.elasticsearch.action.publish.PublishResponse;
 import org.elasticsearch.action.support.WebSocketAction;
+import org.elasticsearch.client.websocket.ChunkedSource;
 import org.elasticsearch.client.websocket.WebSocketClient;
+import org.elasticsearch.client.websocket.WebSocketPriority;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.jboss.netty.channel.ChannelFuture;
 
 public class WebSocketPublishAction extends WebSocketAction<PublishRequest,PublishResponse> {
 
     public static final String NAME = "publish";
     
+    /**
+     * Messages are latency-sensitive and overtake bulk requests.
+     */
     @Override
-    protected void doExecute(WebSocketClient client, PublishRequest request, ActionListener<PublishResponse> listener) {
+    protected WebSocketPriority priority() {
+        return WebSocketPriority.INTERACTIVE;
+    }
+
+    @Override
+    protected ChannelFuture doExecute(WebSocketClient client, PublishRequest request, ActionListener<PublishResponse> listener) {
         try {
             XContentBuilder builder = 
                 builder()
                 .startObject()
-                .field("topic", request.topic())
-                .field("message", request.source().toUtf8())
+                .field("topic", request.topic());
+            if (request.streamSource() != null) {
+                ChunkedSource message = request.jsonMessage() ?
+                        request.streamSource() : ChunkedSource.jsonString(request.streamSource());
+                return responseOK(client, NAME, builder.endObject(), "message", message);
+            }
+            if (request.jsonMessage() && isJson(request.source())) {
+                // JSON messages go out as they are, without escaping them into a string
+                return responseOK(client, NAME, builder.endObject(), "message", request.source());
+            }
+            builder.field("message", request.source().toUtf8())
                 .endObject();
-            responseOK(client, NAME, builder);
+            return responseOK(client, NAME, builder);
         } catch (IOException e) {
-            responseError(client, NAME, e);            
+            return responseError(client, NAME, e);            
         }
     }
     
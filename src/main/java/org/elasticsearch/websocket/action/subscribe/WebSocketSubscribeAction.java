@@ -25,24 +25,39 @@ import org.elasticsearch.action.subscribe.SubscribeRequest;
 import org.elasticsearch.action.subscribe.SubscribeResponse;
 import org.elasticsearch.action.support.WebSocketAction;
 import org.elasticsearch.client.websocket.WebSocketClient;
+import org.elasticsearch.client.websocket.WebSocketPriority;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.jboss.netty.channel.ChannelFuture;
 
 public class WebSocketSubscribeAction extends WebSocketAction<SubscribeRequest,SubscribeResponse> {
 
     public static final String NAME = "subscribe";
     
+    /**
+     * Subscriptions are control requests.
+     */
     @Override
-    protected void doExecute(WebSocketClient client, SubscribeRequest request, ActionListener<SubscribeResponse> listener) {
+    protected WebSocketPriority priority() {
+        return WebSocketPriority.CONTROL;
+    }
+
+    @Override
+    protected ChannelFuture doExecute(WebSocketClient client, SubscribeRequest request, ActionListener<SubscribeResponse> listener) {
         try {
             XContentBuilder builder = 
                 builder()
                 .startObject()
                 .field("topic", request.topic())
-                .field("subscriber", request.subscriberId())
-                .endObject();
-            responseOK(client, NAME, builder);
+                .field("subscriber", request.subscriberId());
+            if (request.filter() != null) {
+                builder.field("filter");
+                request.filter().toXContent(builder, ToXContent.EMPTY_PARAMS);
+            }
+            builder.endObject();
+            return responseOK(client, NAME, builder);
         } catch (IOException e) {
-            responseError(client, NAME, e);            
+            return responseError(client, NAME, e);            
         }
     }
     
@@ -0,0 +1,227 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.lang.management.ManagementFactory;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.publish.PublishRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.websocket.action.index.WebSocketIndexAction;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.indexRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Allocation budgets of the request and frame paths.
+ *
+ * Each test measures the bytes allocated per operation by the test thread, after a
+ * warm-up, and fails if they exceed the budget of the operation. A budget is an upper
+ * bound with some headroom, not an exact figure; if a change has to raise it, raise it
+ * in the same change, on purpose.
+ */
+public class AllocationTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    private final static int WARMUP = 20000;
+
+    private final static int ITERATIONS = 20000;
+
+    private final static String SOURCE = "{\"field\":\"value\",\"number\":12345}";
+
+    private com.sun.management.ThreadMXBean threads;
+
+    private volatile Object sink;
+
+    @BeforeClass
+    public void checkSupport() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("thread allocation counters are not available in this JVM");
+        }
+        threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            throw new SkipException("thread allocation counters are not supported in this JVM");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Test the allocations of building a publish request.
+     */
+    @Test
+    public void testPublishRequest() throws Exception {
+        assertBudget("publish request", 1024L, new Operation() {
+            @Override
+            public void run() {
+                PublishRequest request = publishRequest().topic("topic").source(SOURCE);
+                sink = request;
+            }
+        });
+    }
+
+    /**
+     * Test the allocations of turning an index request into a frame.
+     */
+    @Test
+    public void testIndexAction() throws Exception {
+        final WebSocketIndexAction action = new WebSocketIndexAction();
+        final FrameSink client = new FrameSink();
+        final IndexRequest request = indexRequest().index("test").type("test").id("1").source(SOURCE);
+        assertBudget("index action", 4096L, new Operation() {
+            @Override
+            public void run() {
+                action.write(client, request);
+            }
+        });
+        assertEquals(client.frame.getBinaryData().toString(CharsetUtil.UTF_8),
+                "{\"ok\":true,\"type\":\"index\",\"data\":{\"index\":\"test\",\"type\":\"test\",\"id\":\"1\",\"data\":"
+                        + SOURCE + "}}");
+    }
+
+    /**
+     * Test the allocations of encoding a masked client frame.
+     */
+    @Test
+    public void testFrameEncoding() throws Exception {
+        final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new WebSocket13FrameEncoder(true));
+        final ChannelBuffer payload = ChannelBuffers.copiedBuffer(payload(256), CharsetUtil.UTF_8);
+        // the payload is copied while it is masked
+        assertBudget("frame encoding", 1024L + payload.readableBytes(), new Operation() {
+            @Override
+            public void run() {
+                encoder.offer(new TextWebSocketFrame(payload.duplicate()));
+                sink = encoder.poll();
+            }
+        });
+    }
+
+    /**
+     * Test the allocations of decoding an unmasked server frame.
+     */
+    @Test
+    public void testFrameDecoding() throws Exception {
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new WebSocket13FrameEncoder(false));
+        encoder.offer(new TextWebSocketFrame(payload(256)));
+        final ChannelBuffer encoded = ChannelBuffers.copiedBuffer(encoder.poll());
+        final DecoderEmbedder<WebSocketFrame> decoder = new DecoderEmbedder<WebSocketFrame>(
+                new WebSocket13FrameDecoder(false, false));
+        // the payload is copied out of the received buffer
+        assertBudget("frame decoding", 1024L + encoded.readableBytes(), new Operation() {
+            @Override
+            public void run() {
+                decoder.offer(encoded.duplicate());
+                sink = decoder.poll();
+            }
+        });
+        assertTrue(sink instanceof TextWebSocketFrame);
+    }
+
+    private void assertBudget(String name, long budget, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long perOperation = (threads.getThreadAllocatedBytes(id) - before) / ITERATIONS;
+        logger.info("{}: {} bytes allocated per operation, budget {}", name, perOperation, budget);
+        assertTrue(perOperation <= budget, name + " allocates " + perOperation
+                + " bytes per operation, budget is " + budget);
+    }
+
+    private static String payload(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    interface Operation {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * A client that keeps the last frame instead of sending it, and completes every write at once.
+     */
+    static class FrameSink implements WebSocketClient {
+
+        private final ChannelFuture done = new DefaultChannelFuture(null, false);
+
+        WebSocketFrame frame;
+
+        FrameSink() {
+            done.setSuccess();
+        }
+
+        @Override
+        public Channel channel() {
+            return null;
+        }
+
+        @Override
+        public ChannelFuture connect() {
+            return done;
+        }
+
+        @Override
+        public ChannelFuture disconnect() {
+            return done;
+        }
+
+        @Override
+        public ChannelFuture send(WebSocketFrame frame) {
+            this.frame = frame;
+            return done;
+        }
+
+        @Override
+        public ChannelFuture send(WebSocketFrame frame, WebSocketPriority priority) {
+            this.frame = frame;
+            return done;
+        }
+
+        @Override
+        public ChannelFuture send(ChunkedSource source, WebSocketPriority priority) {
+            return done;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.action.flush.FlushAction;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.publish.PublishAction;
+import org.jboss.netty.channel.ChannelFuture;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.flushRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AsyncTest {
+
+    /**
+     * Test if many pipelined requests complete on the configured executor.
+     */
+    @Test
+    public void testPipelining() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9410).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicInteger completions = new AtomicInteger();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter())
+                    .executor(new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            completions.incrementAndGet();
+                            executor.execute(command);
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            List<ListenableFuture<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < 200; i++) {
+                futures.add(client.indexAsync(new IndexRequest("test")
+                        .type("test").id(Integer.toString(i)).source("{\"field\":" + i + "}")));
+            }
+            Futures.allAsList(futures).get(5, TimeUnit.SECONDS);
+            client.flushAsync(flushRequest()).get(5, TimeUnit.SECONDS);
+            Thread.sleep(500);
+            assertEquals(server.count("index"), 200L);
+            assertEquals(completions.get(), 201);
+            client.close();
+            client.disconnect();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if the frames of many concurrent senders are all written.
+     */
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9429).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        final ExecutorService senders = Executors.newFixedThreadPool(8);
+        try {
+            final WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<ChannelFuture> last = new CopyOnWriteArrayList<ChannelFuture>();
+            for (int t = 0; t < 8; t++) {
+                final int sender = t;
+                senders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            ChannelFuture future = null;
+                            for (int i = 0; i < 1000; i++) {
+                                future = client.write(IndexAction.INSTANCE, new IndexRequest("test").type("test")
+                                        .id(sender + "-" + i).source("{\"field\":" + i + "}"));
+                            }
+                            last.add(future);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            start.countDown();
+            senders.shutdown();
+            assertTrue(senders.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(last.size(), 8);
+            for (ChannelFuture future : last) {
+                assertTrue(future.await(5000, TimeUnit.MILLISECONDS));
+                assertTrue(future.isSuccess());
+            }
+            Thread.sleep(500);
+            assertEquals(server.count("index"), 8000L);
+            assertEquals(client.pendingWrites(), 0);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a flush stays behind the index requests before it, and the close frame is the last frame.
+     */
+    @Test
+    public void testFlushAndCloseOrder() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9430).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            // all frames are queued while connecting and leave by priority after the handshake
+            client.connect();
+            for (int i = 0; i < 100; i++) {
+                client.write(IndexAction.INSTANCE, new IndexRequest("test").type("test")
+                        .id(Integer.toString(i)).source("{\"field\":" + i + "}"));
+            }
+            client.write(FlushAction.INSTANCE, flushRequest());
+            client.close();
+            ChannelFuture late = client.write(PublishAction.INSTANCE, publishRequest().topic("late").source("{}"));
+            assertTrue(late.await(1000, TimeUnit.MILLISECONDS));
+            assertFalse(late.isSuccess());
+            Thread.sleep(1000);
+            List<String> received = server.received();
+            assertEquals(received.size(), 102);
+            assertEquals(received.lastIndexOf("index"), 99);
+            assertEquals(received.get(100), "flush");
+            assertEquals(received.get(101), "close");
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.base.Charsets;
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.elasticsearch.client.websocket.tools.BulkLoader;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class BulkLoaderTest {
+
+    /**
+     * Test if every line of a file arrives at the server exactly once.
+     */
+    @Test
+    public void testLoad() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9407).start();
+        Path file = Files.createTempFile("bulkloader", ".json");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(file, Charsets.UTF_8)) {
+                for (int i = 0; i < 1000; i++) {
+                    writer.write("{\"field1\":\"value" + i + "\",\"field2\":" + i + "}\n");
+                }
+                // last line without line feed
+                writer.write("{\"field1\":\"last\"}");
+            }
+            BulkLoader loader = new BulkLoader()
+                    .uri(server.uri())
+                    .index("test")
+                    .type("test")
+                    .connections(3)
+                    .window(10)
+                    .input(file)
+                    .progress(null);
+            loader.run();
+            assertEquals(loader.docs(), 1001L);
+            Thread.sleep(500);
+            assertEquals(server.count("index"), 1001L);
+            assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".checkpoint")));
+        } finally {
+            Files.deleteIfExists(file);
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class BulkProcessorTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Test if the batch size grows on an idle server and every batch is flushed.
+     */
+    @Test
+    public void testAdaptiveBatchSize() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9411).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            WebSocketBulkProcessor processor = new WebSocketBulkProcessor(client)
+                    .batchSize(10, 10, 1000, 10);
+            for (int i = 0; i < 1000; i++) {
+                processor.add(new IndexRequest("test").type("test").id(Integer.toString(i))
+                        .source("{\"field\":" + i + "}"));
+            }
+            assertTrue(processor.close(5, TimeUnit.SECONDS));
+            logger.info("operating point after {} batches: {}", processor.batches(), processor);
+            assertTrue(processor.batchSize() > 10);
+            assertEquals(processor.errors(), 0L);
+            Thread.sleep(500);
+            assertEquals(server.count("index"), 1000L);
+            assertEquals(server.count("flush"), processor.batches());
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if failed requests are retried with backoff and given up to the dead letter listener.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            // never connected, every write fails
+            WebSocketIngestClient client = factory.newIngestClient(new URI("ws://localhost:9412/websocket"),
+                    new WebSocketIngestActionListener.Adapter());
+            WebSocketRetryPolicy policy = new WebSocketRetryPolicy(2,
+                    TimeValue.timeValueMillis(10), TimeValue.timeValueMillis(15));
+            assertEquals(policy.backoff(0), 10L);
+            assertEquals(policy.backoff(1), 15L);
+            final List<ActionRequest> deadLetters = Lists.newCopyOnWriteArrayList();
+            WebSocketBulkProcessor processor = factory.newBulkProcessor(client)
+                    .batchSize(10, 10, 100, 10)
+                    .retry(policy, new WebSocketBulkProcessor.DeadLetterListener() {
+                        @Override
+                        public void onDeadLetter(ActionRequest request, Throwable cause) {
+                            deadLetters.add(request);
+                        }
+                    });
+            for (int i = 0; i < 5; i++) {
+                processor.add(new IndexRequest("test").type("test").source("{\"field\":" + i + "}"));
+            }
+            assertTrue(processor.close(5, TimeUnit.SECONDS));
+            assertEquals(deadLetters.size(), 5);
+            assertEquals(processor.deadLetters(), 5L);
+            assertEquals(processor.errors(), 15L);
+            for (ActionRequest request : deadLetters) {
+                assertNotNull(((IndexRequest) request).id());
+            }
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+    /**
+     * Test if only transport failures are retried, with the id of the first attempt,
+     * and invalid requests are given up at once.
+     */
+    @Test
+    public void testNoRetry() throws Exception {
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            // never connected, every write fails
+            WebSocketIngestClient client = factory.newIngestClient(new URI("ws://localhost:9412/websocket"),
+                    new WebSocketIngestActionListener.Adapter());
+            WebSocketRetryPolicy policy = new WebSocketRetryPolicy(2,
+                    TimeValue.timeValueMillis(10), TimeValue.timeValueMillis(15));
+            final List<ActionRequest> deadLetters = Lists.newCopyOnWriteArrayList();
+            final List<Throwable> causes = Lists.newCopyOnWriteArrayList();
+            WebSocketBulkProcessor processor = factory.newBulkProcessor(client)
+                    .batchSize(10, 10, 100, 10)
+                    .retry(policy, new WebSocketBulkProcessor.DeadLetterListener() {
+                        @Override
+                        public void onDeadLetter(ActionRequest request, Throwable cause) {
+                            deadLetters.add(request);
+                            causes.add(cause);
+                        }
+                    });
+            IndexRequest valid = new IndexRequest("test").type("test").source("{\"field\":1}");
+            IndexRequest invalid = new IndexRequest("test").type("test");
+            processor.add(valid);
+            String id = valid.id();
+            processor.add(invalid);
+            assertTrue(processor.close(5, TimeUnit.SECONDS));
+            // the invalid request fails once, the valid one on every attempt
+            assertEquals(processor.errors(), 4L);
+            assertEquals(deadLetters.size(), 2);
+            assertTrue(deadLetters.get(0) == invalid);
+            assertTrue(causes.get(0) instanceof ActionRequestValidationException);
+            assertTrue(deadLetters.get(1) == valid);
+            assertTrue(causes.get(1) instanceof WebSocketException);
+            assertEquals(valid.id(), id);
+        } finally {
+            factory.shutdown();
+        }
+    }
+
+    /**
+     * Test if a producer waits for a full processor at most for the block timeout,
+     * and not at all on a non-blocking thread.
+     */
+    @Test
+    public void testBlockTimeout() throws Exception {
+        // accepts the connection, but never answers the handshake, so no write completes
+        ServerSocket socket = new ServerSocket(9435);
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(new URI("ws://localhost:9435/websocket"),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            final WebSocketBulkProcessor processor = new WebSocketBulkProcessor(client)
+                    .batchSize(1, 1, 1, 1).maxConcurrency(1).blockTimeout(TimeValue.timeValueMillis(100));
+            processor.add(new IndexRequest("test").type("test").id("1").source("{\"field\":1}"));
+            long t0 = System.currentTimeMillis();
+            try {
+                processor.add(new IndexRequest("test").type("test").id("2").source("{\"field\":2}"));
+                fail("full processor accepted a request");
+            } catch (IllegalStateException e) {
+                assertTrue(System.currentTimeMillis() - t0 >= 100L);
+            }
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            processor.blockTimeout(TimeValue.timeValueSeconds(30));
+            Thread thread = WebSocketMemoryBudget.nonBlocking(Executors.defaultThreadFactory()).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processor.add(new IndexRequest("test").type("test").id("3").source("{\"field\":3}"));
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            thread.start();
+            thread.join(1000);
+            assertFalse(thread.isAlive());
+            assertTrue(failure.get() instanceof IllegalStateException);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            socket.close();
+        }
+    }
+}
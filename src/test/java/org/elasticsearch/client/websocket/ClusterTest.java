@@ -0,0 +1,112 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.flushRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ClusterTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Test if requests are routed to the remaining node when a node goes away.
+     */
+    @Test
+    public void testFailover() throws Exception {
+        WebSocketTestServer server1 = new WebSocketTestServer(9403).start();
+        WebSocketTestServer server2 = new WebSocketTestServer(9404).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .heartbeat(TimeValue.timeValueMillis(100), 3);
+        try {
+            WebSocketClusterIngestClient client = factory.newClusterIngestClient(
+                    Arrays.asList(server1.uri(), server2.uri()),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect();
+            Thread.sleep(1000);
+            for (int i = 0; i < 10; i++) {
+                client.publish(publishRequest().topic("cluster").source("Hello World " + i));
+            }
+            Thread.sleep(500);
+            assertEquals(server1.count("publish") + server2.count("publish"), 10L);
+            logger.info("stopping first node");
+            server1.stop();
+            Thread.sleep(500);
+            long before = server2.count("publish");
+            for (int i = 0; i < 10; i++) {
+                client.publish(publishRequest().topic("cluster").source("Hello World " + i));
+            }
+            Thread.sleep(500);
+            assertEquals(server2.count("publish"), before + 10L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server2.stop();
+        }
+    }
+
+    /**
+     * Test if a flush reaches all connected nodes, and if close leaves no node connected.
+     */
+    @Test
+    public void testFlushAndClose() throws Exception {
+        WebSocketTestServer server1 = new WebSocketTestServer(9437).start();
+        WebSocketTestServer server2 = new WebSocketTestServer(9438).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketClusterIngestClient client = factory.newClusterIngestClient(
+                    Arrays.asList(server1.uri(), server2.uri()),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect();
+            Thread.sleep(1000);
+            client.flush(flushRequest()).get(5, TimeUnit.SECONDS);
+            Thread.sleep(500);
+            assertEquals(server1.count("flush"), 1L);
+            assertEquals(server2.count("flush"), 1L);
+            client.close();
+            Thread.sleep(500);
+            for (WebSocketIngestClient node : client.clients()) {
+                assertFalse(node.isConnected());
+            }
+            try {
+                client.flush(flushRequest()).get(5, TimeUnit.SECONDS);
+                fail("flush without connected nodes succeeded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof WebSocketException);
+            }
+        } finally {
+            factory.shutdown();
+            server1.stop();
+            server2.stop();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class CoalescingBufferTest {
+
+    /**
+     * Test if repeated updates of the same documents within a window are sent once.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9414).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            WebSocketCoalescingBuffer buffer = factory.newCoalescingBuffer(client,
+                    TimeValue.timeValueSeconds(10), 1000);
+            for (int i = 0; i < 100; i++) {
+                buffer.add(new IndexRequest("test").type("test").id(Integer.toString(i % 5))
+                        .source("{\"version\":" + i + "}"));
+            }
+            buffer.add(new DeleteRequest("test", "test", "0"));
+            buffer.close();
+            assertEquals(buffer.coalesced(), 96L);
+            Thread.sleep(500);
+            assertEquals(buffer.sent(), 5L);
+            assertEquals(buffer.failed(), 0L);
+            assertEquals(server.count("index"), 4L);
+            assertEquals(server.count("delete"), 1L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if the versions of a document arrive in order while windows are sent by the timer and by add.
+     */
+    @Test
+    public void testOrderedWindows() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9431).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            WebSocketCoalescingBuffer buffer = factory.newCoalescingBuffer(client,
+                    TimeValue.timeValueMillis(1), 3);
+            for (int i = 0; i < 1000; i++) {
+                buffer.add(new IndexRequest("test").type("test").id(Integer.toString(i % 5))
+                        .source("{\"version\":" + i + "}"));
+            }
+            buffer.close();
+            Thread.sleep(500);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(server.lastVersion(Integer.toString(i)), 995L + i);
+            }
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if failed writes are not counted as sent, and are handed to the failure listener.
+     */
+    @Test
+    public void testFailures() throws Exception {
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            // never connected, so every write fails
+            WebSocketIngestClient client = factory.newIngestClient(new URI("ws://localhost:9436/websocket"),
+                    new WebSocketIngestActionListener.Adapter());
+            final List<ActionRequest> failures = new CopyOnWriteArrayList<ActionRequest>();
+            WebSocketCoalescingBuffer buffer = factory.newCoalescingBuffer(client,
+                    TimeValue.timeValueSeconds(10), 1000)
+                    .failureListener(new WebSocketCoalescingBuffer.FailureListener() {
+                        @Override
+                        public void onFailure(ActionRequest request, Throwable cause) {
+                            failures.add(request);
+                        }
+                    });
+            for (int i = 0; i < 5; i++) {
+                buffer.add(new IndexRequest("test").type("test").id(Integer.toString(i))
+                        .source("{\"version\":" + i + "}"));
+            }
+            buffer.close();
+            Thread.sleep(100);
+            assertEquals(buffer.sent(), 0L);
+            assertEquals(buffer.failed(), 5L);
+            assertEquals(failures.size(), 5);
+        } finally {
+            factory.shutdown();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.jboss.netty.channel.ChannelFuture;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectTest {
+
+    /**
+     * Test if requests sent right after connect() are queued and written after the handshake.
+     */
+    @Test
+    public void testSendWhileConnecting() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9422).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect();
+            ChannelFuture last = null;
+            for (int i = 0; i < 100; i++) {
+                last = client.write(IndexAction.INSTANCE, new IndexRequest("test").type("test")
+                        .id(Integer.toString(i)).source("{\"field\":" + i + "}"));
+                assertNotNull(last);
+            }
+            assertTrue(last.await(5000, TimeUnit.MILLISECONDS));
+            assertTrue(last.isSuccess());
+            Thread.sleep(500);
+            assertEquals(server.count("index"), 100L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a client that never connected returns failed futures.
+     */
+    @Test
+    public void testSendWithoutConnect() throws Exception {
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(new URI("ws://localhost:9423/websocket"),
+                    new WebSocketIngestActionListener.Adapter());
+            ChannelFuture future = client.write(IndexAction.INSTANCE, new IndexRequest("test").type("test")
+                    .id("1").source("{\"field\":1}"));
+            assertTrue(future.isDone());
+            assertFalse(future.isSuccess());
+        } finally {
+            factory.shutdown();
+        }
+    }
+}
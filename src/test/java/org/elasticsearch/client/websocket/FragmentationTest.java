@@ -0,0 +1,170 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class FragmentationTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Test if a message larger than the fragment size survives the round trip.
+     */
+    @Test
+    public void testLargeMessage() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9405).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .fragmentation(new ByteSizeValue(1, ByteSizeUnit.KB), new ByteSizeValue(1, ByteSizeUnit.MB));
+        final XContentBuilder message = jsonBuilder().startObject();
+        for (int i = 0; i < 1000; i++) {
+            message.field("field" + i, "value" + i);
+        }
+        message.endObject();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger length = new AtomicInteger();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter() {
+                        @Override
+                        public void onConnect(WebSocketIngestClient client) throws IOException {
+                            client.subscribe(subscribeRequest().topic("large").subscriberId("large"));
+                            client.publish(publishRequest().topic("large").source(message));
+                        }
+
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) {
+                            length.set(frame.getBinaryData().readableBytes());
+                            latch.countDown();
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+            logger.info("received message of {} bytes", length.get());
+            assertTrue(length.get() > message.bytes().length());
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a message streamed from a file arrives as a whole.
+     */
+    @Test
+    public void testStreamedMessage() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9406).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .fragmentation(new ByteSizeValue(1, ByteSizeUnit.KB), new ByteSizeValue(1, ByteSizeUnit.MB));
+        final XContentBuilder message = jsonBuilder().startObject();
+        for (int i = 0; i < 1000; i++) {
+            message.field("field" + i, "value" + i);
+        }
+        message.endObject();
+        final Path path = Files.createTempFile("message", ".json");
+        Files.write(path, message.bytes().toBytes());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger length = new AtomicInteger();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter() {
+                        @Override
+                        public void onConnect(WebSocketIngestClient client) throws IOException {
+                            client.subscribe(subscribeRequest().topic("streamed").subscriberId("streamed"));
+                            client.publish(publishRequest().topic("streamed").source(path));
+                        }
+
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) {
+                            length.set(frame.getBinaryData().readableBytes());
+                            latch.countDown();
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+            logger.info("received message of {} bytes", length.get());
+            assertTrue(length.get() > Files.size(path));
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Test if a fragmented message above the spill threshold is assembled from a mapped file.
+     */
+    @Test
+    public void testSpilledMessage() throws Exception {
+        Path directory = Files.createTempDirectory("spill");
+        try {
+            DecoderEmbedder<WebSocketFrame> embedder = new DecoderEmbedder<WebSocketFrame>(
+                    new WebSocketFrameAssembler(1024 * 1024, 1024, directory));
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                String fragment = String.format("%0512d", i);
+                expected.append(fragment);
+                ChannelBuffer payload = ChannelBuffers.copiedBuffer(fragment, CharsetUtil.UTF_8);
+                embedder.offer(i == 0 ? new TextWebSocketFrame(false, 0, payload) :
+                        new ContinuationWebSocketFrame(i == 9, 0, payload));
+            }
+            WebSocketFrame frame = embedder.poll();
+            assertTrue(frame instanceof TextWebSocketFrame);
+            assertTrue(frame.getBinaryData().isDirect());
+            assertEquals(frame.getBinaryData().toString(CharsetUtil.UTF_8), expected.toString());
+            // the spill file is gone, only the mapping is left
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                assertFalse(files.iterator().hasNext());
+            }
+            embedder.finish();
+        } finally {
+            Files.deleteIfExists(directory);
+        }
+    }
+}
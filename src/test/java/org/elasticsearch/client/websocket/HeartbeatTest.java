@@ -0,0 +1,82 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertTrue;
+
+public class HeartbeatTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Test if pong frames are turned into round trip times.
+     */
+    @Test
+    public void testRoundTripTime() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9401).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .heartbeat(TimeValue.timeValueMillis(100), 3);
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(1000);
+            logger.info("round trip time: {}", client.roundTripTime());
+            assertTrue(client.roundTripTime().count() > 0);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a connection is closed when the server stops answering pings.
+     */
+    @Test
+    public void testDeadConnection() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9402).respondToPings(false).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .heartbeat(TimeValue.timeValueMillis(100), 3);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter() {
+                        @Override
+                        public void onDisconnect(WebSocketIngestClient client) {
+                            logger.info("disconnected");
+                            latch.countDown();
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2000, TimeUnit.MILLISECONDS));
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class MemoryBudgetTest {
+
+    /**
+     * Test if a blocked producer proceeds when bytes are released, and gives up after the timeout.
+     */
+    @Test
+    public void testBlock() throws Exception {
+        final WebSocketMemoryBudget budget = new WebSocketMemoryBudget(new ByteSizeValue(1000),
+                WebSocketMemoryBudget.Policy.BLOCK).blockTimeout(TimeValue.timeValueMillis(100));
+        assertTrue(budget.acquire(600));
+        assertFalse(budget.acquire(600));
+        assertEquals(budget.rejected(), 1L);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                budget.release(600);
+            }
+        }.start();
+        budget.blockTimeout(TimeValue.timeValueSeconds(5));
+        assertTrue(budget.acquire(600));
+        assertEquals(budget.used(), 600L);
+    }
+
+    /**
+     * Test if a producer on a non-blocking thread is rejected at once instead of waiting.
+     */
+    @Test
+    public void testNonBlockingThread() throws Exception {
+        final WebSocketMemoryBudget budget = new WebSocketMemoryBudget(new ByteSizeValue(1000),
+                WebSocketMemoryBudget.Policy.BLOCK).blockTimeout(TimeValue.timeValueSeconds(30));
+        assertTrue(budget.acquire(600));
+        final AtomicBoolean acquired = new AtomicBoolean(true);
+        final CountDownLatch latch = new CountDownLatch(1);
+        Thread thread = WebSocketMemoryBudget.nonBlocking(Executors.defaultThreadFactory()).newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(budget.acquire(600));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latch.countDown();
+            }
+        });
+        thread.start();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(acquired.get());
+        assertEquals(budget.rejected(), 1L);
+        assertFalse(WebSocketMemoryBudget.isNonBlockingThread());
+    }
+
+    /**
+     * Test if frames beyond the budget are rejected, and the budget is given back when they are written.
+     */
+    @Test
+    public void testReject() throws Exception {
+        final WebSocketMemoryBudget budget = new WebSocketMemoryBudget(new ByteSizeValue(0),
+                WebSocketMemoryBudget.Policy.REJECT);
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory().memoryBudget(budget);
+        WebSocketTestServer server = new WebSocketTestServer(9424).start();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            ChannelFuture future = client.write(IndexAction.INSTANCE, new IndexRequest("test").type("test")
+                    .id("1").source("{\"field\":1}"));
+            assertTrue(future.isDone());
+            assertTrue(future.getCause() instanceof WebSocketBudgetExceededException);
+            assertEquals(budget.used(), 0L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if frames rejected by the budget while connecting do not take places in the handshake queue.
+     */
+    @Test
+    public void testRejectWhileConnecting() throws Exception {
+        final WebSocketMemoryBudget budget = new WebSocketMemoryBudget(new ByteSizeValue(0),
+                WebSocketMemoryBudget.Policy.REJECT);
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .memoryBudget(budget).handshakeQueue(1);
+        WebSocketTestServer server = new WebSocketTestServer(9434).start();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            ChannelFuture connect = client.connect();
+            // sent before the handshake is done
+            for (int i = 0; i < 5; i++) {
+                ChannelFuture future = client.send(new TextWebSocketFrame("rejected"));
+                assertTrue(future.getCause() instanceof WebSocketBudgetExceededException);
+            }
+            ChannelFuture ping = client.send(new PingWebSocketFrame(), WebSocketPriority.CONTROL);
+            ChannelFuture full = client.send(new PingWebSocketFrame(), WebSocketPriority.CONTROL);
+            assertTrue(full.isDone());
+            assertFalse(full.isSuccess());
+            connect.await(1000, TimeUnit.MILLISECONDS);
+            assertTrue(ping.await(1000, TimeUnit.MILLISECONDS));
+            assertTrue(ping.isSuccess());
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a message beyond the budget is spilled to disk and still arrives.
+     */
+    @Test
+    public void testSpill() throws Exception {
+        final WebSocketMemoryBudget budget = new WebSocketMemoryBudget(new ByteSizeValue(0),
+                WebSocketMemoryBudget.Policy.SPILL);
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory().memoryBudget(budget);
+        WebSocketTestServer server = new WebSocketTestServer(9425).start();
+        try {
+            final AtomicInteger received = new AtomicInteger();
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter() {
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) {
+                            received.incrementAndGet();
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("spill").subscriberId("spill"));
+            client.publish(publishRequest().topic("spill").source("{\"field\":\"value\"}"));
+            Thread.sleep(500);
+            assertEquals(budget.spilled(), 1L);
+            assertEquals(server.count("publish"), 1L);
+            assertEquals(received.get(), 1);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class MessageTest {
+
+    /**
+     * Test if the fields of a message are found without decoding the frame.
+     */
+    @Test
+    public void testMessageView() throws Exception {
+        WebSocketMessage message = new WebSocketMessage(ChannelBuffers.copiedBuffer(
+                "{ \"ok\" : true, \"type\" : \"message\", \"data\" : { \"topic\" : \"a \\\"quoted\\\" topic\", "
+                        + "\"data\" : {\"text\":\"}]\\\"\",\"list\":[1,{\"a\":2}]}, \"timestamp\" : 1234 } }",
+                CharsetUtil.UTF_8));
+        assertTrue(message.isMessage());
+        assertEquals(message.topic(), "a \"quoted\" topic");
+        assertEquals(message.timestamp(), 1234L);
+        assertEquals(message.data().toUtf8(), "{\"text\":\"}]\\\"\",\"list\":[1,{\"a\":2}]}");
+        WebSocketMessage response = new WebSocketMessage(ChannelBuffers.copiedBuffer(
+                "{\"ok\":true,\"type\":\"index\"}", CharsetUtil.UTF_8));
+        assertFalse(response.isMessage());
+        assertNull(response.topic());
+        assertNull(response.data());
+    }
+
+    /**
+     * Test if a message listener receives views of the published messages.
+     */
+    @Test
+    public void testMessageListener() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9417).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            final List<WebSocketMessage> messages = new CopyOnWriteArrayList<WebSocketMessage>();
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter())
+                    .messageListener(new WebSocketMessageListener() {
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketMessage message) {
+                            messages.add(message);
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("view").subscriberId("view"));
+            Thread.sleep(500);
+            client.publish(publishRequest().topic("view").source("{\"field\":\"value\"}"));
+            Thread.sleep(500);
+            assertEquals(messages.size(), 1);
+            WebSocketMessage message = messages.get(0);
+            assertEquals(message.topic(), "view");
+            assertTrue(message.timestamp() > 0L);
+            // a string by default
+            assertEquals(message.data().toUtf8(), "\"{\\\"field\\\":\\\"value\\\"}\"");
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if messages go out as JSON only on request, and streamed messages are escaped into strings otherwise.
+     */
+    @Test
+    public void testJsonMessage() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9433).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            final List<WebSocketMessage> messages = new CopyOnWriteArrayList<WebSocketMessage>();
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter())
+                    .messageListener(new WebSocketMessageListener() {
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketMessage message) {
+                            messages.add(message);
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("json").subscriberId("json"));
+            Thread.sleep(500);
+            client.publish(publishRequest().topic("json").source("{\"field\":\"value\"}").jsonMessage(true));
+            client.publish(publishRequest().topic("json").jsonMessage(true)
+                    .source(new ByteArrayInputStream("{\"field\":1}".getBytes(Charsets.UTF_8))));
+            client.publish(publishRequest().topic("json")
+                    .source(new ByteArrayInputStream("say \"h\u00e9\"\n\\".getBytes(Charsets.UTF_8))));
+            Thread.sleep(500);
+            assertEquals(messages.size(), 3);
+            assertEquals(messages.get(0).data().toUtf8(), "{\"field\":\"value\"}");
+            assertEquals(messages.get(1).data().toUtf8(), "{\"field\":1}");
+            assertEquals(messages.get(2).data().toUtf8(), "\"say \\\"h\u00e9\\\"\\n\\\\\"");
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if the messages of a batch frame are unpacked with the envelope of the batch.
+     */
+    @Test
+    public void testUnpack() throws Exception {
+        WebSocketMessage batch = new WebSocketMessage(ChannelBuffers.copiedBuffer(
+                "{\"ok\":true,\"type\":\"message\",\"data\":{\"topic\":\"t\",\"timestamp\":42,"
+                        + "\"data\":{\"_batch\":[{\"a\":\"],\"}, [1,2] ,3,\"x\"]}}}",
+                CharsetUtil.UTF_8));
+        List<WebSocketMessage> messages = batch.unpack();
+        assertEquals(messages.size(), 4);
+        assertEquals(messages.get(0).data().toUtf8(), "{\"a\":\"],\"}");
+        assertEquals(messages.get(1).data().toUtf8(), "[1,2]");
+        assertEquals(messages.get(2).data().toUtf8(), "3");
+        assertEquals(messages.get(3).data().toUtf8(), "\"x\"");
+        for (WebSocketMessage message : messages) {
+            assertEquals(message.topic(), "t");
+            assertEquals(message.timestamp(), 42L);
+        }
+        // a message with a field of the same name next to others is not a batch
+        assertNull(new WebSocketMessage(ChannelBuffers.copiedBuffer(
+                "{\"ok\":true,\"type\":\"message\",\"data\":{\"topic\":\"t\","
+                        + "\"data\":{\"_batch\":[1],\"other\":2}}}", CharsetUtil.UTF_8)).unpack());
+    }
+
+    /**
+     * Test if batched messages arrive one by one and in order, in fewer frames.
+     */
+    @Test
+    public void testPublishBatcher() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9428).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory().unpackBatches(true);
+        try {
+            final List<WebSocketMessage> messages = new CopyOnWriteArrayList<WebSocketMessage>();
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter())
+                    .messageListener(new WebSocketMessageListener() {
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketMessage message) {
+                            messages.add(message);
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("batch").subscriberId("batch"));
+            Thread.sleep(500);
+            WebSocketPublishBatcher batcher = factory.newPublishBatcher(client,
+                    TimeValue.timeValueMillis(100), new ByteSizeValue(1024));
+            for (int i = 0; i < 100; i++) {
+                batcher.add(publishRequest().topic("batch").source("{\"field\":" + i + "}").jsonMessage(true));
+            }
+            // not JSON, sent after the open batch
+            batcher.add(publishRequest().topic("batch").source("last"));
+            batcher.close();
+            Thread.sleep(500);
+            assertEquals(batcher.messages(), 101L);
+            assertTrue(batcher.sent() < 20L);
+            assertEquals(server.count("publish"), batcher.sent());
+            assertEquals(messages.size(), 101);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(messages.get(i).topic(), "batch");
+                assertEquals(messages.get(i).data().toUtf8(), "{\"field\":" + i + "}");
+            }
+            assertEquals(messages.get(100).data().toUtf8(), "\"last\"");
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    /**
+     * Test if queued frames reach the channel in order, over more than one drain pass,
+     * and the close frame comes last.
+     */
+    @Test
+    public void testDrain() throws Exception {
+        SimpleChannelDownstreamHandler handler = new SimpleChannelDownstreamHandler();
+        EncoderEmbedder<WebSocketFrame> channel = new EncoderEmbedder<WebSocketFrame>(new Writer(), handler);
+        ChannelHandlerContext ctx = channel.getPipeline().getContext(handler);
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue();
+        List<ChannelFuture> futures = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            ChannelFuture future = Channels.future(ctx.getChannel());
+            futures.add(future);
+            queue.offer(new TextWebSocketFrame("frame " + i), future, WebSocketPriority.BULK);
+        }
+        ChannelFuture close = Channels.future(ctx.getChannel());
+        queue.offerClose(new CloseWebSocketFrame(), close);
+        queue.drain(ctx);
+        for (int i = 0; i < 500; i++) {
+            WebSocketFrame frame = channel.poll();
+            assertTrue(frame instanceof TextWebSocketFrame);
+            assertEquals(((TextWebSocketFrame) frame).getText(), "frame " + i);
+            assertTrue(futures.get(i).isSuccess());
+        }
+        assertTrue(channel.poll() instanceof CloseWebSocketFrame);
+        assertTrue(close.isSuccess());
+        assertNull(channel.poll());
+    }
+
+    /**
+     * Test if a message larger than the fragment size is written as continuation frames.
+     */
+    @Test
+    public void testFragments() throws Exception {
+        SimpleChannelDownstreamHandler handler = new SimpleChannelDownstreamHandler();
+        EncoderEmbedder<WebSocketFrame> channel = new EncoderEmbedder<WebSocketFrame>(new Writer(), handler);
+        ChannelHandlerContext ctx = channel.getPipeline().getContext(handler);
+        WebSocketOutboundQueue queue = new WebSocketOutboundQueue(4);
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        queue.offer(new TextWebSocketFrame("Hello World"), future, WebSocketPriority.BULK);
+        queue.drain(ctx);
+        WebSocketFrame first = channel.poll();
+        assertTrue(first instanceof TextWebSocketFrame);
+        assertFalse(first.isFinalFragment());
+        assertEquals(first.getBinaryData().toString(CharsetUtil.UTF_8), "Hell");
+        WebSocketFrame second = channel.poll();
+        assertTrue(second instanceof ContinuationWebSocketFrame);
+        assertFalse(second.isFinalFragment());
+        assertEquals(second.getBinaryData().toString(CharsetUtil.UTF_8), "o Wo");
+        WebSocketFrame last = channel.poll();
+        assertTrue(last instanceof ContinuationWebSocketFrame);
+        assertTrue(last.isFinalFragment());
+        assertEquals(last.getBinaryData().toString(CharsetUtil.UTF_8), "rld");
+        assertTrue(future.isSuccess());
+        assertNull(channel.poll());
+    }
+
+    /**
+     * Completes the writes, as the embedded channel does not.
+     */
+    static class Writer extends SimpleChannelDownstreamHandler {
+
+        @Override
+        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            ctx.sendDownstream(e);
+            e.getFuture().setSuccess();
+        }
+    }
+}
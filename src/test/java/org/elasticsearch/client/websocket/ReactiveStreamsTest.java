@@ -0,0 +1,227 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.action.index.IndexRequest;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ReactiveStreamsTest {
+
+    /**
+     * Test if frames are only delivered on demand.
+     */
+    @Test
+    public void testFramePublisher() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9408).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient subscriber = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            final AtomicInteger received = new AtomicInteger();
+            final AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+            subscriber.publisher(subscribeRequest().topic("reactive").subscriberId("reactive"))
+                    .subscribe(new Subscriber<WebSocketFrame>() {
+                        @Override
+                        public void onSubscribe(Subscription s) {
+                            subscription.set(s);
+                            s.request(1L);
+                        }
+
+                        @Override
+                        public void onNext(WebSocketFrame frame) {
+                            received.incrementAndGet();
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                        }
+
+                        @Override
+                        public void onComplete() {
+                        }
+                    });
+            subscriber.connect().await(1000, TimeUnit.MILLISECONDS);
+            WebSocketIngestClient publisher = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            publisher.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            for (int i = 0; i < 10; i++) {
+                publisher.publish(publishRequest().topic("reactive").source("Hello World " + i));
+            }
+            Thread.sleep(500);
+            assertEquals(received.get(), 1);
+            subscription.get().request(9L);
+            Thread.sleep(500);
+            assertEquals(received.get(), 10);
+            publisher.close();
+            publisher.disconnect();
+            subscriber.close();
+            subscriber.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a subscriber stays subscribed across a reconnect and is completed when the client is closed.
+     */
+    @Test
+    public void testReconnect() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9432).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient subscriber = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            final AtomicInteger received = new AtomicInteger();
+            final CountDownLatch completed = new CountDownLatch(1);
+            subscriber.publisher(subscribeRequest().topic("reconnect").subscriberId("reconnect"))
+                    .subscribe(new Subscriber<WebSocketFrame>() {
+                        @Override
+                        public void onSubscribe(Subscription s) {
+                            s.request(Long.MAX_VALUE);
+                        }
+
+                        @Override
+                        public void onNext(WebSocketFrame frame) {
+                            if (frame.getBinaryData().toString(CharsetUtil.UTF_8).contains("Hello World")) {
+                                received.incrementAndGet();
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            completed.countDown();
+                        }
+                    });
+            subscriber.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            subscriber.disconnect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            assertEquals(completed.getCount(), 1L);
+            subscriber.connect().await(1000, TimeUnit.MILLISECONDS);
+            WebSocketIngestClient publisher = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            publisher.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            publisher.publish(publishRequest().topic("reconnect").source("Hello World"));
+            Thread.sleep(500);
+            assertEquals(received.get(), 1);
+            publisher.close();
+            publisher.disconnect();
+            subscriber.close();
+            assertTrue(completed.await(1000, TimeUnit.MILLISECONDS));
+            subscriber.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if index requests from a publisher are sent and followed by a flush.
+     */
+    @Test
+    public void testIndexSubscriber() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9409).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            WebSocketIndexSubscriber subscriber = client.indexSubscriber(10);
+            new RangePublisher(100).subscribe(subscriber);
+            assertTrue(subscriber.await(5000, TimeUnit.MILLISECONDS));
+            assertNull(subscriber.failure());
+            Thread.sleep(500);
+            assertEquals(server.count("index"), 100L);
+            assertEquals(server.count("flush"), 1L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Publishes a number of index requests, as many as requested.
+     */
+    static class RangePublisher implements Publisher<IndexRequest> {
+
+        private final int count;
+
+        RangePublisher(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(final Subscriber<? super IndexRequest> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                private final AtomicInteger next = new AtomicInteger();
+                private final AtomicInteger wip = new AtomicInteger();
+                private long demand;
+
+                @Override
+                public synchronized void request(long n) {
+                    demand += n;
+                    if (wip.getAndIncrement() != 0) {
+                        return;
+                    }
+                    do {
+                        while (demand > 0 && next.get() < count) {
+                            int i = next.getAndIncrement();
+                            demand--;
+                            subscriber.onNext(new IndexRequest("test").type("test").id(Integer.toString(i))
+                                    .source("{\"field\":" + i + "}"));
+                        }
+                        if (next.get() == count && next.getAndIncrement() == count) {
+                            subscriber.onComplete();
+                        }
+                    } while (wip.decrementAndGet() != 0);
+                }
+
+                @Override
+                public void cancel() {
+                    next.set(count + 1);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.replication.ReplicationType;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.jboss.netty.channel.ChannelFuture;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.indexRequestPool;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class RecyclerTest {
+
+    /**
+     * Test if pooled requests are reset and reused after their frames are written.
+     */
+    @Test
+    public void testPooledRequests() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9413).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            WebSocketRecycler<IndexRequest> pool = indexRequestPool(4);
+            for (int i = 0; i < 100; i++) {
+                IndexRequest request = pool.obtain();
+                request.index("test").type("test").id(Integer.toString(i)).source("{\"field\":" + i + "}");
+                ChannelFuture future = client.write(IndexAction.INSTANCE, request, pool);
+                assertTrue(future.await(1000, TimeUnit.MILLISECONDS));
+            }
+            Thread.sleep(500);
+            assertTrue(pool.size() >= 1 && pool.size() <= 4);
+            IndexRequest reused = pool.obtain();
+            assertNull(reused.id());
+            assertNull(reused.index());
+            assertEquals(server.count("index"), 100L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if a released request is reset to the defaults of a new request.
+     */
+    @Test
+    public void testReset() throws Exception {
+        WebSocketRecycler<IndexRequest> pool = indexRequestPool(1);
+        IndexRequest request = pool.obtain();
+        request.index("test").type("test").id("1").routing("r").parent("p").timestamp("1").ttl(1000L)
+                .source("{\"field\":1}").opType(IndexRequest.OpType.CREATE)
+                .version(5L).versionType(VersionType.EXTERNAL).refresh(true).percolate("*");
+        request.timeout(TimeValue.timeValueSeconds(5));
+        request.replicationType(ReplicationType.ASYNC);
+        request.consistencyLevel(WriteConsistencyLevel.ALL);
+        pool.release(request);
+        IndexRequest reused = pool.obtain();
+        assertSame(reused, request);
+        IndexRequest defaults = new IndexRequest();
+        assertNull(reused.index());
+        assertNull(reused.type());
+        assertNull(reused.id());
+        assertNull(reused.routing());
+        assertNull(reused.parent());
+        assertNull(reused.timestamp());
+        assertNull(reused.source());
+        assertEquals(reused.opType(), defaults.opType());
+        assertEquals(reused.version(), defaults.version());
+        assertEquals(reused.versionType(), defaults.versionType());
+        assertEquals(reused.refresh(), defaults.refresh());
+        assertNull(reused.percolate());
+        assertEquals(reused.timeout(), defaults.timeout());
+        assertEquals(reused.replicationType(), defaults.replicationType());
+        assertEquals(reused.consistencyLevel(), defaults.consistencyLevel());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.testng.Assert.assertEquals;
+
+public class ReplayTest {
+
+    /**
+     * Test if a late listener receives the most recent messages of its topic, then the live ones.
+     */
+    @Test
+    public void testLateListener() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9415).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            WebSocketReplayBuffer replay = new WebSocketReplayBuffer(5,
+                    TimeValue.timeValueMinutes(1), new ByteSizeValue(1024 * 1024));
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter()).replay(replay);
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("replay").subscriberId("replay"));
+            client.subscribe(subscribeRequest().topic("other").subscriberId("replay"));
+            Thread.sleep(500);
+            for (int i = 0; i < 20; i++) {
+                client.publish(publishRequest().topic("replay").source("Hello World " + i));
+            }
+            client.publish(publishRequest().topic("other").source("Hello World"));
+            Thread.sleep(500);
+            assertEquals(replay.size("replay"), 5);
+            assertEquals(replay.size("other"), 1);
+            final AtomicInteger received = new AtomicInteger();
+            replay.addListener("replay", new WebSocketReplayBuffer.Listener() {
+                @Override
+                public void onMessage(String topic, WebSocketFrame frame) {
+                    received.incrementAndGet();
+                }
+            });
+            assertEquals(received.get(), 5);
+            client.publish(publishRequest().topic("replay").source("Hello World"));
+            Thread.sleep(500);
+            assertEquals(received.get(), 6);
+            assertEquals(replay.size("replay"), 5);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test if messages dropped from a hot topic are released while an older message of a quiet topic is kept.
+     */
+    @Test
+    public void testQuietAndHotTopic() throws Exception {
+        WebSocketReplayBuffer replay = new WebSocketReplayBuffer(5,
+                TimeValue.timeValueMinutes(1), new ByteSizeValue(1024 * 1024));
+        replay.record(message("quiet", 0));
+        for (int i = 0; i < 10000; i++) {
+            replay.record(message("hot", i));
+        }
+        assertEquals(replay.size("quiet"), 1);
+        assertEquals(replay.size("hot"), 5);
+        assertEquals(replay.size(), 6);
+        assertEquals(replay.bytes(), message("quiet", 0).getBinaryData().readableBytes()
+                + 5 * message("hot", 9999).getBinaryData().readableBytes());
+    }
+
+    private static WebSocketFrame message(String topic, int i) {
+        return new TextWebSocketFrame("{\"type\":\"message\",\"data\":{\"topic\":\"" + topic
+                + "\",\"message\":\"" + (10000 + i) + "\"}}");
+    }
+}
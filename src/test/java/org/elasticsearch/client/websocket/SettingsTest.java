@@ -0,0 +1,70 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.jboss.netty.channel.socket.nio.NioSocketChannelConfig;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class SettingsTest {
+
+    /**
+     * Test if the settings of a client override the settings of its factory.
+     */
+    @Test
+    public void testClientOverrides() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9421).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .settings(WebSocketClientSettings.highThroughput());
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter(),
+                    new WebSocketClientSettings().tcpNoDelay(true)
+                            .writeBufferWaterMarks(new ByteSizeValue(16, ByteSizeUnit.KB), new ByteSizeValue(48, ByteSizeUnit.KB)));
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            NioSocketChannelConfig config = (NioSocketChannelConfig) client.channel().getConfig();
+            assertTrue(config.isTcpNoDelay());
+            assertTrue(config.isKeepAlive());
+            assertEquals(config.getWriteBufferLowWaterMark(), 16 * 1024);
+            assertEquals(config.getWriteBufferHighWaterMark(), 48 * 1024);
+            assertEquals(config.getConnectTimeoutMillis(), 30000);
+            client.close();
+            client.disconnect();
+            WebSocketIngestClient other = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            other.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            config = (NioSocketChannelConfig) other.channel().getConfig();
+            assertFalse(config.isTcpNoDelay());
+            assertEquals(config.getWriteBufferHighWaterMark(), 2 * 1024 * 1024);
+            other.close();
+            other.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
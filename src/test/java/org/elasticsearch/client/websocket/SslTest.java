@@ -0,0 +1,113 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SslTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Test if a second connection to the same server resumes the TLS session of the first.
+     */
+    @Test
+    public void testSessionResumption() throws Exception {
+        SSLContext context = WebSocketTestServer.testSSLContext();
+        WebSocketTestServer server = new WebSocketTestServer(9418).ssl(context).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .ssl(WebSocketTestServer.testSSLContext());
+        try {
+            WebSocketIngestClient first = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            first.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            assertTrue(first.isConnected());
+            SSLSession session = first.channel().getPipeline().get(SslHandler.class).getEngine().getSession();
+            first.close();
+            first.disconnect().await(1000, TimeUnit.MILLISECONDS);
+            WebSocketIngestClient second = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            second.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            assertTrue(second.isConnected());
+            SSLSession resumed = second.channel().getPipeline().get(SslHandler.class).getEngine().getSession();
+            assertTrue(Arrays.equals(session.getId(), resumed.getId()));
+            second.close();
+            second.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Compare the throughput of index requests over ws and wss.
+     */
+    @Test
+    public void testThroughput() throws Exception {
+        long ws = throughput(new WebSocketTestServer(9419), new WebSocketIngestClientFactory());
+        SSLContext context = WebSocketTestServer.testSSLContext();
+        long wss = throughput(new WebSocketTestServer(9420).ssl(context),
+                new WebSocketIngestClientFactory().ssl(WebSocketTestServer.testSSLContext()));
+        logger.info("ws: {} docs/sec, wss: {} docs/sec", ws, wss);
+    }
+
+    private long throughput(WebSocketTestServer server, WebSocketIngestClientFactory factory) throws Exception {
+        final int docs = 20000;
+        server.start();
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            long t0 = System.nanoTime();
+            ChannelFuture last = null;
+            for (int i = 0; i < docs; i++) {
+                last = client.write(IndexAction.INSTANCE, new IndexRequest("test").type("test")
+                        .id(Integer.toString(i)).source("{\"field\":\"value " + i + "\"}"));
+            }
+            assertTrue(last.await(10000, TimeUnit.MILLISECONDS));
+            while (server.count("index") < docs && System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(10)) {
+                Thread.sleep(1);
+            }
+            long rate = docs * TimeUnit.SECONDS.toNanos(1) / Math.max(1L, System.nanoTime() - t0);
+            assertEquals(server.count("index"), (long) docs);
+            client.close();
+            client.disconnect();
+            return rate;
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
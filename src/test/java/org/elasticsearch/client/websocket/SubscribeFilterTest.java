@@ -0,0 +1,150 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.action.subscribe.SubscribeFilter;
+import org.elasticsearch.action.subscribe.SubscribeRequest;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SubscribeFilterTest {
+
+    /**
+     * Test if a filter survives the serialization of a subscribe request.
+     */
+    @Test
+    public void testStreamable() throws Exception {
+        SubscribeRequest request = subscribeRequest().topic("filter").subscriberId("filter")
+                .filter(new SubscribeFilter().term("user", "kimchy").range("price", 10, null).exists("tags"));
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        SubscribeRequest copy = new SubscribeRequest();
+        copy.readFrom(new BytesStreamInput(out.bytes().toBytes(), false));
+        assertEquals(copy.subscriberId(), "filter");
+        assertEquals(copy.filter().toString(), request.filter().toString());
+    }
+
+    /**
+     * Test if the compiled filter agrees with the filter on the decoded messages.
+     */
+    @Test
+    public void testMessageFilter() throws Exception {
+        SubscribeFilter filter = new SubscribeFilter()
+                .term("user.name", "kimchy").range("price", 10, 19.5).exists("tags");
+        WebSocketMessageFilter compiled = WebSocketMessageFilter.compile(filter);
+        String[] messages = {
+                "{\"user\":{\"name\":\"kimchy\"},\"price\":15,\"tags\":[]}",
+                "{\"price\":15,\"tags\":[\"a\"],\"user\":{\"id\":1,\"name\":\"kimchy\"}}",
+                "{\"user\":{\"name\":\"kimchy\"},\"price\":20,\"tags\":[]}",
+                "{\"user\":{\"name\":\"other\"},\"price\":15,\"tags\":[]}",
+                "{\"user\":{\"name\":[\"other\",\"kimchy\"]},\"price\":\"15\",\"tags\":null}",
+                "{\"user\":{\"name\":[\"other\",\"kimchy\"]},\"price\":12.5,\"tags\":{}}",
+                "{\"user\":\"kimchy\",\"price\":15,\"tags\":[]}",
+                "\"Hello World\""
+        };
+        boolean[] expected = { true, true, false, false, false, true, false, false };
+        for (int i = 0; i < messages.length; i++) {
+            String frame = "{\"ok\":true,\"type\":\"message\",\"data\":{\"topic\":\"filter\",\"timestamp\":0,\"data\":"
+                    + messages[i] + "}}";
+            Object message = XContentHelper.convertToMap(frame.getBytes("UTF-8"), 0, frame.length(), false).v2();
+            message = ((Map<?, ?>) ((Map<?, ?>) message).get("data")).get("data");
+            assertEquals(filter.matches(message), expected[i], messages[i]);
+            assertEquals(compiled.matches(new TextWebSocketFrame(frame)), expected[i], messages[i]);
+        }
+        // frames without a message are not filtered
+        assertTrue(compiled.matches(new TextWebSocketFrame("{\"ok\":true,\"type\":\"index\"}")));
+    }
+
+    /**
+     * Test if malformed clauses are rejected with a parse error.
+     */
+    @Test
+    public void testMalformedClauses() throws Exception {
+        String[] filters = {
+                "[\"term\"]",
+                "[{\"range\":{\"price\":10}}]",
+                "[{\"exists\":{\"field\":1}}]",
+                "[{\"prefix\":{\"user\":\"k\"}}]"
+        };
+        for (String filter : filters) {
+            String json = "{\"filter\":" + filter + "}";
+            Map<String, Object> map = XContentHelper.convertToMap(json.getBytes("UTF-8"), 0, json.length(), false).v2();
+            try {
+                SubscribeFilter.fromList((List<?>) map.get("filter"));
+                fail("malformed filter accepted: " + filter);
+            } catch (ElasticSearchIllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test if the server only sends the messages that match the filter of a subscription.
+     */
+    @Test
+    public void testServerSideFilter() throws Exception {
+        WebSocketTestServer server = new WebSocketTestServer(9416).start();
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory();
+        try {
+            final AtomicInteger received = new AtomicInteger();
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter() {
+                        @Override
+                        public void onMessage(WebSocketIngestClient client, WebSocketFrame frame) {
+                            received.incrementAndGet();
+                        }
+                    });
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("filter").subscriberId("filter")
+                    .filter(new SubscribeFilter().term("user.name", "kimchy").range("price", 10, 19)));
+            Thread.sleep(500);
+            for (int i = 0; i < 30; i++) {
+                String user = i % 2 == 0 ? "kimchy" : "other";
+                client.publish(publishRequest().topic("filter")
+                        .source("{\"user\":{\"name\":\"" + user + "\"},\"price\":" + i + "}").jsonMessage(true));
+            }
+            client.publish(publishRequest().topic("filter").source("Hello World"));
+            Thread.sleep(500);
+            // even prices from 10 to 18
+            assertEquals(received.get(), 5);
+            assertEquals(server.count("publish"), 31L);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.client.websocket.tools.TrafficReplayer;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.publishRequest;
+import static org.elasticsearch.client.websocket.WebSocketIngestRequests.subscribeRequest;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TrafficTest {
+
+    /**
+     * Test if a recorded session is replayed with the same frames and messages.
+     */
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        Path capture = Files.createTempFile("traffic", ".bin");
+        WebSocketTestServer server = new WebSocketTestServer(9426).start();
+        WebSocketTrafficRecorder recorder = new WebSocketTrafficRecorder(capture);
+        final WebSocketIngestClientFactory factory = new WebSocketIngestClientFactory()
+                .heartbeat(null, 1)
+                .record(recorder);
+        try {
+            WebSocketIngestClient client = factory.newIngestClient(server.uri(),
+                    new WebSocketIngestActionListener.Adapter());
+            client.connect().await(1000, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+            client.subscribe(subscribeRequest().topic("traffic").subscriberId("traffic"));
+            Thread.sleep(100);
+            for (int i = 0; i < 10; i++) {
+                client.publish(publishRequest().topic("traffic").source("{\"field\":" + i + "}"));
+                Thread.sleep(20);
+            }
+            Thread.sleep(500);
+            client.close();
+            client.disconnect();
+        } finally {
+            factory.shutdown();
+            server.stop();
+            recorder.close();
+        }
+        // 1 subscribe and 10 publish frames out, 10 messages in, and the close frames
+        assertTrue(recorder.frames() >= 21L);
+        WebSocketTestServer replayServer = new WebSocketTestServer(9427).start();
+        try {
+            TrafficReplayer.Report report = new TrafficReplayer()
+                    .uri(replayServer.uri())
+                    .input(capture)
+                    .speed(2.0d)
+                    .run();
+            assertEquals(report.connections(), 1);
+            assertEquals(report.sent(), 11L);
+            assertEquals(report.expected(), 10L);
+            assertEquals(report.received(), 10L);
+            assertEquals(report.deltas().length, 10);
+            assertTrue(report.maxLag() < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(replayServer.count("publish"), 10L);
+        } finally {
+            replayServer.stop();
+            Files.deleteIfExists(capture);
+        }
+    }
+}
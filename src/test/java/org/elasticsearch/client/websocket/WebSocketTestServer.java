@@ -0,0 +1,310 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.client.websocket;
+
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+import org.elasticsearch.action.subscribe.SubscribeFilter;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * A stand-in for the Elasticsearch websocket transport, good enough for
+ * exercising the client without a running cluster.
+ *
+ * It understands the frames produced by the websocket actions: subscribe
+ * registers the channel for a topic, publish forwards the message to all
+ * subscribers of the topic whose filter matches it, and all other requests
+ * are only counted.
+ */
+public class WebSocketTestServer {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    private final int port;
+
+    private final ChannelGroup channels = new DefaultChannelGroup("websocket-test-server");
+
+    private final Map<String, ChannelGroup> topics = Maps.newConcurrentMap();
+
+    // the filters of the subscriptions, by topic and channel id
+    private final Map<String, SubscribeFilter> filters = Maps.newConcurrentMap();
+
+    private final Map<String, AtomicLong> counts = Maps.newConcurrentMap();
+
+    // the version field of the last indexed document of each id
+    private final Map<String, Long> versions = Maps.newConcurrentMap();
+
+    // the types of the received requests and close frames, in the order of arrival
+    private final List<String> received = new CopyOnWriteArrayList<String>();
+
+    private volatile boolean respondToPings = true;
+
+    private SSLContext sslContext;
+
+    private ServerBootstrap bootstrap;
+
+    public WebSocketTestServer(int port) {
+        this.port = port;
+    }
+
+    public URI uri() throws URISyntaxException {
+        return new URI((sslContext != null ? "wss" : "ws") + "://localhost:" + port + "/websocket");
+    }
+
+    /**
+     * Accept wss connections with the given TLS context.
+     */
+    public WebSocketTestServer ssl(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    /**
+     * A TLS context with the self-signed certificate for localhost of the test
+     * key store, good for both the server and the clients.
+     */
+    public static SSLContext testSSLContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = WebSocketTestServer.class.getResourceAsStream("/testkeystore.jks");
+        try {
+            keyStore.load(in, "testpass".toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "testpass".toCharArray());
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLSv1.2");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Simulate a half-open connection by not answering ping frames.
+     */
+    public WebSocketTestServer respondToPings(boolean respondToPings) {
+        this.respondToPings = respondToPings;
+        return this;
+    }
+
+    /**
+     * The number of requests of the given type received so far.
+     */
+    public long count(String type) {
+        AtomicLong count = counts.get(type);
+        return count != null ? count.get() : 0L;
+    }
+
+    /**
+     * The types of the requests received so far, and "close" for close frames, in the order of arrival.
+     */
+    public List<String> received() {
+        return received;
+    }
+
+    /**
+     * The "version" field of the last document indexed with the given id, or -1.
+     */
+    public long lastVersion(String id) {
+        Long version = versions.get(id);
+        return version != null ? version : -1L;
+    }
+
+    public WebSocketTestServer start() {
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool()));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                if (sslContext != null) {
+                    SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    pipeline.addLast("ssl", new SslHandler(engine));
+                }
+                pipeline.addLast("decoder", new HttpRequestDecoder());
+                pipeline.addLast("aggregator", new HttpChunkAggregator(65536));
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("assembler", new WebSocketFrameAssembler(Integer.MAX_VALUE));
+                pipeline.addLast("handler", new Handler());
+                return pipeline;
+            }
+        });
+        channels.add(bootstrap.bind(new InetSocketAddress(port)));
+        return this;
+    }
+
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+    }
+
+    protected void dispatch(Channel channel, TextWebSocketFrame frame) throws IOException {
+        ChannelBuffer buffer = frame.getBinaryData();
+        byte[] b = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), b);
+        Map<String, Object> request = XContentHelper.convertToMap(b, 0, b.length, false).v2();
+        String type = (String) request.get("type");
+        received.add(type);
+        AtomicLong count = counts.get(type);
+        if (count == null) {
+            counts.put(type, count = new AtomicLong());
+        }
+        count.incrementAndGet();
+        Map<String, Object> data = (Map<String, Object>) request.get("data");
+        if ("index".equals(type) && data.get("id") != null && data.get("data") instanceof Map) {
+            Object version = ((Map<?, ?>) data.get("data")).get("version");
+            if (version instanceof Number) {
+                versions.put((String) data.get("id"), ((Number) version).longValue());
+            }
+        }
+        if ("subscribe".equals(type)) {
+            String topic = (String) data.get("topic");
+            if (data.get("filter") instanceof List) {
+                filters.put(topic + "/" + channel.getId(), SubscribeFilter.fromList((List<?>) data.get("filter")));
+            } else {
+                filters.remove(topic + "/" + channel.getId());
+            }
+            subscribers(topic).add(channel);
+        } else if ("publish".equals(type)) {
+            String topic = (String) data.get("topic");
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("ok", true)
+                    .field("type", "message")
+                    .startObject("data")
+                    .field("topic", topic)
+                    .field("timestamp", System.currentTimeMillis())
+                    .field("data", data.get("message"))
+                    .endObject()
+                    .endObject();
+            ChannelBuffer message = ChannelBuffers.copiedBuffer(builder.bytes().toBytes());
+            for (Channel subscriber : subscribers(topic)) {
+                SubscribeFilter filter = filters.get(topic + "/" + subscriber.getId());
+                if (filter == null || filter.matches(data.get("message"))) {
+                    subscriber.write(new TextWebSocketFrame(message.duplicate()));
+                }
+            }
+        }
+    }
+
+    private ChannelGroup subscribers(String topic) {
+        ChannelGroup group = topics.get(topic);
+        if (group == null) {
+            synchronized (topics) {
+                group = topics.get(topic);
+                if (group == null) {
+                    group = new DefaultChannelGroup(topic);
+                    topics.put(topic, group);
+                }
+            }
+        }
+        return group;
+    }
+
+    class Handler extends SimpleChannelUpstreamHandler {
+
+        private WebSocketServerHandshaker handshaker;
+
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            channels.add(e.getChannel());
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            Object message = e.getMessage();
+            if (message instanceof HttpRequest) {
+                WebSocketServerHandshakerFactory factory =
+                        new WebSocketServerHandshakerFactory(uri().toString(), null, false);
+                handshaker = factory.newHandshaker((HttpRequest) message);
+                if (handshaker == null) {
+                    factory.sendUnsupportedWebSocketVersionResponse(ctx.getChannel());
+                } else {
+                    handshaker.handshake(ctx.getChannel(), (HttpRequest) message);
+                }
+                return;
+            }
+            WebSocketFrame frame = (WebSocketFrame) message;
+            if (frame instanceof CloseWebSocketFrame) {
+                received.add("close");
+                handshaker.close(ctx.getChannel(), (CloseWebSocketFrame) frame);
+            } else if (frame instanceof PingWebSocketFrame) {
+                if (respondToPings) {
+                    ctx.getChannel().write(new PongWebSocketFrame(frame.getBinaryData()));
+                }
+            } else if (frame instanceof TextWebSocketFrame) {
+                dispatch(ctx.getChannel(), (TextWebSocketFrame) frame);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            logger.error(e.getCause().getMessage(), e.getCause());
+            e.getChannel().close();
+        }
+    }
+}